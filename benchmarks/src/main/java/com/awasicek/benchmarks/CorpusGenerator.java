@@ -0,0 +1,484 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.awasicek.FileUtil;
+
+/*
+ * Command line tool that generates load test cases at any scale, from single files of a few KB to tens of GB and directory trees of
+ * millions of files, together with the output each one should have. The same seed and settings always give the same bytes, and
+ * every file can be generated on its own (its seed comes from the tree seed and its number).
+ *
+ *   file  OUT [options]   writes OUT and OUT.expected
+ *   tree  DIR [options]   writes DIR/input and DIR/expected, the same tree before and after eliminating duplicates
+ *   check ACTUAL EXPECTED compares two trees (or files) byte for byte, exits with 1 if they differ
+ *
+ * The expected output is computed with FileUtil.regexElimDups, the reference behavior. A file is generated in blocks of
+ * BLOCK_CHARS characters so that it never has to be held in memory as a whole, and every block after the first starts with a
+ * marker such as "[12]". No match can reach across a marker (a match only ever repeats a word, and generated words never hold a
+ * '['), so the expected output of the file is the expected output of its blocks one after another.
+ *
+ * A tree also holds decoys that a run must leave alone, with duplicates in them all the same: files with other extensions, and
+ * .txt files nobody can read or write (where the file system has POSIX permissions). Their expected content is their content.
+ */
+public final class CorpusGenerator {
+
+	private static final int BLOCK_CHARS = 64 * 1024;
+	private static final String[] DECOY_EXTENSIONS = { "log", "dat", "md", "txt.bak" };
+
+	public static final String USAGE = "Usage: CorpusGenerator file OUT [options]\n"
+			+ "       CorpusGenerator tree DIR [options]\n"
+			+ "       CorpusGenerator check ACTUAL EXPECTED\n"
+			+ "  --seed N                 seed of everything generated (default 42)\n"
+			+ "  --size SIZE              size of the file, or typical size of the files of a tree, e.g. 2KB, 16MB, 20GB (default 64KB)\n"
+			+ "  --distribution NAME      sizes of the files of a tree: fixed, uniform (up to twice --size), lognormal or pareto\n"
+			+ "                           (a few very big files among many small ones) (default fixed)\n"
+			+ "  --max-size SIZE          largest file a distribution may give (default 4GB)\n"
+			+ "  --files N                number of text files in a tree (default 1000)\n"
+			+ "  --depth N                levels of directories below DIR/input (default 2)\n"
+			+ "  --fanout N               subdirectories of each directory (default 4)\n"
+			+ "  --decoys FRACTION        share of additional files that must be left alone (default 0.05)\n"
+			+ "  --density D              chance that a word is repeated (default 0.05)\n"
+			+ "  --run-length N           times a repeated word appears in a row (default 2)\n"
+			+ "  --punctuation NAME       none, mixed or heavy (default mixed)\n"
+			+ "  --case NAME              none or mixed, whether repeated words vary in case (default mixed)\n"
+			+ "  --content NAME           ascii, unicode or mixed (default mixed)\n"
+			+ "  --no-expected            skip the expected output (much faster for very big cases)";
+
+	private long seed = 42;
+	private long size = 64 * 1024;
+	private String distribution = "fixed";
+	private long maxSize = 4L << 30;
+	private int files = 1000;
+	private int depth = 2;
+	private int fanout = 4;
+	private double decoys = 0.05;
+	private double density = 0.05;
+	private int runLength = 2;
+	private int punctuationEvery = 8;
+	private boolean varyCase = true;
+	private String content = "mixed";
+	private boolean expected = true;
+
+	private CorpusGenerator()
+	{
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		if (args[0].equals("check"))
+		{
+			if (args.length != 3)
+			{
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+			System.exit(check(Paths.get(args[1]), Paths.get(args[2])) == 0 ? 0 : 1);
+		}
+		CorpusGenerator generator = new CorpusGenerator();
+		try
+		{
+			generator.parse(Arrays.copyOfRange(args, 2, args.length));
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		Path out = Paths.get(args[1]);
+		switch (args[0])
+		{
+		case "file":
+			generator.file(out, generator.size, generator.seed);
+			break;
+		case "tree":
+			generator.tree(out);
+			break;
+		default:
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+	}
+
+	// Helper method that reads the options
+	private void parse(String[] args)
+	{
+		for (int k = 0; k < args.length; k++)
+		{
+			String option = args[k];
+			if (option.equals("--no-expected"))
+			{
+				expected = false;
+				continue;
+			}
+			if (k + 1 >= args.length)
+			{
+				throw new IllegalArgumentException(option + " needs a value");
+			}
+			String value = args[++k];
+			switch (option)
+			{
+			case "--seed":
+				seed = Long.parseLong(value);
+				break;
+			case "--size":
+				size = TextGenerator.parseSize(value);
+				break;
+			case "--distribution":
+				distribution = oneOf(value, option, "fixed", "uniform", "lognormal", "pareto");
+				break;
+			case "--max-size":
+				maxSize = TextGenerator.parseSize(value);
+				break;
+			case "--files":
+				files = Integer.parseInt(value);
+				break;
+			case "--depth":
+				depth = Integer.parseInt(value);
+				break;
+			case "--fanout":
+				fanout = Math.max(1, Integer.parseInt(value));
+				break;
+			case "--decoys":
+				decoys = Double.parseDouble(value);
+				break;
+			case "--density":
+				density = Double.parseDouble(value);
+				break;
+			case "--run-length":
+				runLength = Math.max(1, Integer.parseInt(value));
+				break;
+			case "--punctuation":
+				String punctuation = oneOf(value, option, "none", "mixed", "heavy");
+				punctuationEvery = punctuation.equals("none") ? 0 : punctuation.equals("mixed") ? 8 : 2;
+				break;
+			case "--case":
+				varyCase = oneOf(value, option, "none", "mixed").equals("mixed");
+				break;
+			case "--content":
+				content = oneOf(value, option, "ascii", "unicode", "mixed");
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + option);
+			}
+		}
+	}
+
+	private static String oneOf(String value, String option, String... allowed)
+	{
+		if (!Arrays.asList(allowed).contains(value))
+		{
+			throw new IllegalArgumentException(option + " needs one of " + String.join(", ", allowed) + ", not " + value);
+		}
+		return value;
+	}
+
+	/*
+	 * Writes about bytes bytes of UTF-8 text to out, and what eliminating its duplicates gives to out.expected (unless that was
+	 * turned off). Whole words are written, so the file can end up a few bytes longer.
+	 */
+	private void file(Path out, long bytes, long fileSeed) throws IOException
+	{
+		file(out, expected ? Paths.get(out + ".expected") : null, bytes, fileSeed);
+	}
+
+	private void file(Path out, Path expectedOut, long bytes, long fileSeed) throws IOException
+	{
+		TextGenerator generator = new TextGenerator(fileSeed, density, runLength, punctuationEvery, varyCase, content);
+		try (OutputStream text = new BufferedOutputStream(Files.newOutputStream(out), 1 << 16);
+				OutputStream result = expectedOut == null ? null : new BufferedOutputStream(Files.newOutputStream(expectedOut), 1 << 16))
+		{
+			StringBuilder block = new StringBuilder(BLOCK_CHARS + 256);
+			long written = 0;
+			for (long index = 0; written < bytes; index++)
+			{
+				block.setLength(0);
+				if (index > 0)
+				{
+					block.append('[').append(index).append("] ");
+				}
+				// a character takes at least one byte, so this never overshoots by more than a word
+				generator.append(block, (int) Math.min(BLOCK_CHARS, bytes - written));
+				// every block ends a line
+				block.append('\n');
+				String part = block.toString();
+				byte[] encoded = part.getBytes(StandardCharsets.UTF_8);
+				text.write(encoded);
+				written += encoded.length;
+				if (result != null)
+				{
+					result.write(expectedOf(part).getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Helper method that gives the expected output of a block. The case insensitive back reference of java.util.regex steps through
+	 * the text one char per code point, so it misses repeated words with surrogate pairs in them (and can throw
+	 * StringIndexOutOfBoundsException near the end of the text). Every supplementary character is therefore swapped for a stand-in
+	 * the generator never writes, of the same kind for \b and \S (a Hangul syllable for a letter or digit, a private use character
+	 * otherwise), before the regex runs, and swapped back after. A match only ever drops whole words, never part of a stand-in.
+	 */
+	static String expectedOf(String block)
+	{
+		Map<Integer, Character> standIns = new HashMap<Integer, Character>();
+		StringBuilder bmp = new StringBuilder(block.length());
+		for (int k = 0; k < block.length(); k += Character.charCount(block.codePointAt(k)))
+		{
+			int codePoint = block.codePointAt(k);
+			if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+			{
+				bmp.append((char) codePoint);
+				continue;
+			}
+			Character standIn = standIns.get(codePoint);
+			if (standIn == null)
+			{
+				standIn = (char) ((Character.isLetterOrDigit(codePoint) ? 0xAC00 : 0xE000) + standIns.size());
+				standIns.put(codePoint, standIn);
+			}
+			bmp.append(standIn.charValue());
+		}
+		String result = FileUtil.regexElimDups(bmp.toString());
+		if (standIns.isEmpty())
+		{
+			return result;
+		}
+		Map<Character, Integer> originals = new HashMap<Character, Integer>();
+		standIns.forEach((codePoint, standIn) -> originals.put(standIn, codePoint));
+		StringBuilder restored = new StringBuilder(result.length() + 16);
+		for (int k = 0; k < result.length(); k++)
+		{
+			Integer original = originals.get(result.charAt(k));
+			if (original == null)
+			{
+				restored.append(result.charAt(k));
+			}
+			else
+			{
+				restored.appendCodePoint(original);
+			}
+		}
+		return restored.toString();
+	}
+
+	/*
+	 * Writes a tree of text files and decoys to dir/input and the same tree as it should be after a run to dir/expected. Directories
+	 * are depth levels deep with fanout subdirectories each, and files go to directories at random, at every level.
+	 */
+	private void tree(Path dir) throws IOException
+	{
+		Random random = new Random(seed);
+		List<Path> dirs = new ArrayList<Path>();
+		dirs.add(Paths.get(""));
+		List<Path> level = dirs;
+		for (int d = 0; d < depth; d++)
+		{
+			List<Path> next = new ArrayList<Path>();
+			for (Path parent : level)
+			{
+				for (int f = 0; f < fanout; f++)
+				{
+					next.add(parent.resolve("d" + f));
+				}
+			}
+			dirs.addAll(next);
+			level = next;
+		}
+		Path input = dir.resolve("input");
+		Path expectedRoot = dir.resolve("expected");
+		for (Path relative : dirs)
+		{
+			Files.createDirectories(input.resolve(relative.toString()));
+			if (expected)
+			{
+				Files.createDirectories(expectedRoot.resolve(relative.toString()));
+			}
+		}
+		int decoyCount = (int) Math.round(files * decoys);
+		long total = 0;
+		for (int k = 0; k < files + decoyCount; k++)
+		{
+			boolean decoy = k >= files;
+			Path relative = dirs.get(random.nextInt(dirs.size()));
+			String name = decoy ? "decoy" + k + "." + DECOY_EXTENSIONS[k % DECOY_EXTENSIONS.length] : "f" + k + ".txt";
+			boolean unreadable = decoy && k % DECOY_EXTENSIONS.length == 0;
+			if (unreadable)
+			{
+				name = "decoy" + k + ".txt";
+			}
+			long bytes = fileSize(random);
+			Path file = input.resolve(relative.toString()).resolve(name);
+			Path expectedFile = expected ? expectedRoot.resolve(relative.toString()).resolve(name) : null;
+			long fileSeed = seed * 1_000_003L + k;
+			if (decoy)
+			{
+				// decoys are expected to be left as they are
+				file(file, null, bytes, fileSeed);
+				if (expectedFile != null)
+				{
+					Files.copy(file, expectedFile);
+				}
+				if (unreadable)
+				{
+					makeUnreadable(file);
+				}
+			}
+			else
+			{
+				file(file, expectedFile, bytes, fileSeed);
+			}
+			total += bytes;
+		}
+		System.out.println("Generated " + files + " text files and " + decoyCount + " decoys (about " + total + " bytes) in "
+				+ dirs.size() + " directories below " + input);
+	}
+
+	// Helper method that draws the size of the next file of a tree
+	private long fileSize(Random random)
+	{
+		double drawn;
+		switch (distribution)
+		{
+		case "uniform":
+			drawn = 1 + random.nextDouble() * (2 * size - 1);
+			break;
+		case "lognormal":
+			drawn = size * Math.exp(1.5 * random.nextGaussian());
+			break;
+		case "pareto":
+			// the 80/20 shape: most files are close to size, a few are orders of magnitude bigger
+			drawn = size / Math.pow(1 - random.nextDouble(), 1 / 1.16);
+			break;
+		default:
+			drawn = size;
+		}
+		return Math.max(1, Math.min(maxSize, (long) drawn));
+	}
+
+	private static void makeUnreadable(Path file) throws IOException
+	{
+		if (Files.getFileAttributeView(file, PosixFileAttributeView.class) != null)
+		{
+			Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("---------"));
+		}
+	}
+
+	/*
+	 * Compares every file below actual with the file at the same place below expected (or two files), printing the ones that differ
+	 * or are missing. Files that cannot be read (the unreadable decoys) are left out, and so are files nobody has permission to read
+	 * when running as root, which reads and writes them anyway. Returns the number of differences.
+	 */
+	static int check(Path actual, Path expected) throws IOException
+	{
+		List<Path> files;
+		if (Files.isDirectory(expected))
+		{
+			try (Stream<Path> paths = Files.walk(expected))
+			{
+				files = paths.filter(Files::isRegularFile).map(expected::relativize).collect(Collectors.toList());
+			}
+		}
+		else
+		{
+			files = new ArrayList<Path>();
+			files.add(null);
+		}
+		int differences = 0;
+		int compared = 0;
+		for (Path relative : files)
+		{
+			Path a = relative == null ? actual : actual.resolve(relative.toString());
+			Path e = relative == null ? expected : expected.resolve(relative.toString());
+			if (!Files.exists(a))
+			{
+				System.out.println("Missing: " + a);
+				differences++;
+			}
+			else if (Files.isReadable(a) && !unreadable(a))
+			{
+				compared++;
+				if (!sameContent(a, e))
+				{
+					System.out.println("Differs: " + a);
+					differences++;
+				}
+			}
+		}
+		System.out.println(compared + " files compared, " + differences + " differences.");
+		return differences;
+	}
+
+	private static boolean unreadable(Path file) throws IOException
+	{
+		return Files.getFileAttributeView(file, PosixFileAttributeView.class) != null
+				&& !Files.getPosixFilePermissions(file).contains(PosixFilePermission.OWNER_READ);
+	}
+
+	// Helper method that compares two files a block at a time
+	private static boolean sameContent(Path a, Path b) throws IOException
+	{
+		if (Files.size(a) != Files.size(b))
+		{
+			return false;
+		}
+		byte[] x = new byte[1 << 16];
+		byte[] y = new byte[1 << 16];
+		try (InputStream in1 = Files.newInputStream(a); InputStream in2 = Files.newInputStream(b))
+		{
+			int n;
+			while ((n = in1.readNBytes(x, 0, x.length)) > 0)
+			{
+				if (in2.readNBytes(y, 0, n) != n || !Arrays.equals(x, 0, n, y, 0, n))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.awasicek.FileUtil;
+import com.awasicek.InfoUtil;
+import com.awasicek.RunMetrics;
+
+/*
+ * Benchmarks of searchDirsAndDestroyDups over a generated tree. With dirty=false the files have no duplicates, so a run measures
+ * walking, reading and scanning only. With dirty=true every file has duplicates and the tree is restored before each run, so
+ * writing is included as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int files;
+
+	@Param({ "4KB" })
+	public String fileSize;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	@Param({ "false", "true" })
+	public boolean dirty;
+
+	private Path dir;
+	private Path pristine;
+	private Path tree;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		InfoUtil.useGraphics = false;
+		FileUtil.syncWrites = false;
+		FileUtil.threads = threads;
+		dir = Files.createTempDirectory("elimdups-bench");
+		pristine = dir.resolve("pristine");
+		tree = dir.resolve("tree");
+		Trees.generate(pristine, files, TextGenerator.parseSize(fileSize), dirty ? 0.05 : 0.0);
+		Trees.copy(pristine, tree);
+	}
+
+	@Setup(Level.Invocation)
+	public void restore() throws IOException
+	{
+		if (dirty)
+		{
+			Trees.copy(pristine, tree);
+		}
+		RunMetrics.reset();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		Trees.delete(dir);
+	}
+
+	@Benchmark
+	public int searchDirsAndDestroyDups()
+	{
+		FileUtil.searchDirsAndDestroyDups(tree);
+		return (int) RunMetrics.processedFiles.count();
+	}
+}
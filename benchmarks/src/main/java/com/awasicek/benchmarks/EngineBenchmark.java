@@ -0,0 +1,171 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.awasicek.ByteDupScanner;
+import com.awasicek.DupScanner;
+import com.awasicek.FileUtil;
+
+/*
+ * In-memory benchmarks of the dedup engines: the single pass scanner on a whole string, the scanner fed in chunks the way the
+ * streaming file paths use it, the byte scanner fed the UTF-8 encoding in the same chunks, and the regex reference. Sizes above 16MB are left out of the defaults to keep the heap needed for
+ * a whole-string run small, pass e.g. -p size=256MB,1GB (with a big enough -Xmx through -jvmArgs) to include them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+	@Param({ "1KB", "1MB", "16MB" })
+	public String size;
+
+	@Param({ "0.01", "0.3" })
+	public double density;
+
+	@Param({ "2", "5" })
+	public int runLength;
+
+	@Param({ "none", "mixed" })
+	public String punctuation;
+
+	@Param({ "ascii", "unicode" })
+	public String content;
+
+	private String text;
+	private char[] chars;
+	private byte[] utf8;
+
+	@Setup
+	public void setup()
+	{
+		text = new TextGenerator(42, density, runLength, "mixed".equals(punctuation), content)
+				.text((int) TextGenerator.parseSize(size));
+		chars = text.toCharArray();
+		utf8 = text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String scanner()
+	{
+		return DupScanner.elimDups(text);
+	}
+
+	@Benchmark
+	public boolean scannerChunked(Blackhole blackhole) throws IOException
+	{
+		DupScanner scanner = new DupScanner(new BlackholeWriter(blackhole));
+		for (int off = 0; off < chars.length; off += 64 * 1024)
+		{
+			scanner.write(chars, off, Math.min(64 * 1024, chars.length - off));
+		}
+		return scanner.finish();
+	}
+
+	@Benchmark
+	public boolean byteScannerChunked(Blackhole blackhole) throws IOException
+	{
+		ByteDupScanner scanner = new ByteDupScanner(new BlackholeStream(blackhole));
+		for (int off = 0; off < utf8.length; off += 64 * 1024)
+		{
+			scanner.write(utf8, off, Math.min(64 * 1024, utf8.length - off));
+		}
+		return scanner.finish();
+	}
+
+	@Benchmark
+	public String regex()
+	{
+		return FileUtil.regexElimDups(text);
+	}
+
+	// Writer that hands everything to the blackhole, so the chunked run measures the scanner and not an output buffer
+	static final class BlackholeWriter extends Writer {
+
+		private final Blackhole blackhole;
+
+		BlackholeWriter(Blackhole blackhole)
+		{
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			blackhole.consume(cbuf);
+			blackhole.consume(len);
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	// The same for the byte scanner
+	static final class BlackholeStream extends OutputStream {
+
+		private final Blackhole blackhole;
+
+		BlackholeStream(Blackhole blackhole)
+		{
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			blackhole.consume(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			blackhole.consume(b);
+			blackhole.consume(len);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.awasicek.FileUtil;
+import com.awasicek.InfoUtil;
+import com.awasicek.RunMetrics;
+
+/*
+ * Benchmarks of reading, writing and deduplicating a single file. path picks which of FileUtil's read paths elimDups takes: "heap"
+ * (readTextFile and writeTextFile), "streamed" (a Reader through a fixed buffer) or "mapped" (memory mapped windows). The file is
+ * restored from a pristine copy before every elimDups call so each call finds the same duplicates. Only the streamed and mapped
+ * paths can handle -p size=1GB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileIoBenchmark {
+
+	@Param({ "64KB", "16MB" })
+	public String size;
+
+	@Param({ "heap", "streamed", "mapped" })
+	public String path;
+
+	@Param({ "0.05" })
+	public double density;
+
+	@Param({ "false" })
+	public boolean sync;
+
+	private Path dir;
+	private Path pristine;
+	private Path target;
+	private String text;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		InfoUtil.useGraphics = false;
+		FileUtil.syncWrites = sync;
+		FileUtil.useMemoryMapping = "mapped".equals(path);
+		FileUtil.mappingThreshold = "mapped".equals(path) ? 0 : Long.MAX_VALUE;
+		FileUtil.streamingThreshold = "streamed".equals(path) ? 0 : Long.MAX_VALUE;
+		dir = Files.createTempDirectory("elimdups-bench");
+		pristine = dir.resolve("pristine.dat");
+		target = dir.resolve("target.txt");
+		new TextGenerator(42, density, 2, true, "mixed").write(pristine, TextGenerator.parseSize(size));
+		Files.copy(pristine, target, StandardCopyOption.REPLACE_EXISTING);
+		if ("heap".equals(path))
+		{
+			text = FileUtil.readTextFile(pristine);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void restore() throws IOException
+	{
+		Files.copy(pristine, target, StandardCopyOption.REPLACE_EXISTING);
+		RunMetrics.reset();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		Trees.delete(dir);
+	}
+
+	@Benchmark
+	public String readTextFile()
+	{
+		return FileUtil.readTextFile(target);
+	}
+
+	@Benchmark
+	public void writeTextFile()
+	{
+		FileUtil.writeTextFile(text != null ? text : "", target);
+	}
+
+	@Benchmark
+	public boolean elimDups()
+	{
+		return FileUtil.elimDups(target);
+	}
+}
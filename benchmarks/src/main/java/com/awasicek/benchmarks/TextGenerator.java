@@ -0,0 +1,189 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import com.awasicek.FileUtil;
+
+/*
+ * Deterministic text generator for the benchmarks. The same seed and settings always give the same text, which mixes words of a
+ * chosen script, runs of duplicates of a chosen length at a chosen density, varied case, trailing punctuation and line breaks.
+ */
+final class TextGenerator {
+
+	private static final String[] ASCII_WORDS = { "the", "is", "a", "log", "entry", "request", "served", "in", "ms", "user",
+			"error", "warning", "cache", "miss", "hit", "of", "and", "to", "file", "x1", "node_7", "retry", "it's", "re-run" };
+	private static final String[] UNICODE_WORDS = { "über", "straße", "naïve", "café", "été", "число", "данные", "λόγος",
+			"日本語", "テキスト", "中文", "数据", "العربية", "𝐀𝐁", "ok", "is" };
+	private static final char[] PUNCTUATION = { '.', ',', ';', '!', '?' };
+
+	private final Random random;
+	private final double density;
+	private final int runLength;
+	// One word in this many carries trailing punctuation (0 for none)
+	private final int punctuationEvery;
+	private final boolean varyCase;
+	private final String[] words;
+
+	/*
+	 * density is the chance that a word is followed by duplicates, runLength the number of times such a word appears in a row,
+	 * punctuation whether words carry trailing [!,.;?] now and then, and content "ascii", "unicode" or "mixed".
+	 */
+	TextGenerator(long seed, double density, int runLength, boolean punctuation, String content)
+	{
+		this(seed, density, runLength, punctuation ? 8 : 0, true, content);
+	}
+
+	// The same with one word in punctuationEvery carrying punctuation (0 for none), and words only varying in case if varyCase
+	TextGenerator(long seed, double density, int runLength, int punctuationEvery, boolean varyCase, String content)
+	{
+		this.random = new Random(seed);
+		this.density = density;
+		this.runLength = runLength;
+		this.punctuationEvery = punctuationEvery;
+		this.varyCase = varyCase;
+		if ("ascii".equals(content))
+		{
+			words = ASCII_WORDS;
+		}
+		else if ("unicode".equals(content))
+		{
+			words = UNICODE_WORDS;
+		}
+		else
+		{
+			words = new String[ASCII_WORDS.length + UNICODE_WORDS.length];
+			System.arraycopy(ASCII_WORDS, 0, words, 0, ASCII_WORDS.length);
+			System.arraycopy(UNICODE_WORDS, 0, words, ASCII_WORDS.length, UNICODE_WORDS.length);
+		}
+	}
+
+	// Returns about length characters of text
+	String text(int length)
+	{
+		StringBuilder sb = new StringBuilder(length + 64);
+		while (sb.length() < length)
+		{
+			appendWord(sb);
+		}
+		sb.setLength(length);
+		return sb.toString();
+	}
+
+	// Appends whole words (and their runs) until at least length more characters have been appended
+	void append(StringBuilder sb, int length)
+	{
+		int end = sb.length() + length;
+		while (sb.length() < end)
+		{
+			appendWord(sb);
+		}
+	}
+
+	/*
+	 * Writes about size bytes of text to a file without holding it all in memory. The file is written in FileUtil.charset like
+	 * FileUtil writes files (characters it cannot encode are replaced).
+	 */
+	void write(Path file, long size) throws IOException
+	{
+		Charset charset = FileUtil.charset;
+		try (Writer out = new OutputStreamWriter(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16), charset))
+		{
+			StringBuilder sb = new StringBuilder(1 << 16);
+			long written = 0;
+			while (written < size)
+			{
+				sb.setLength(0);
+				while (sb.length() < (1 << 15))
+				{
+					appendWord(sb);
+				}
+				out.append(sb);
+				written += sb.toString().getBytes(charset).length;
+			}
+		}
+	}
+
+	// Helper method that appends a word (or a run of it) followed by punctuation and whitespace
+	private void appendWord(StringBuilder sb)
+	{
+		String word = words[random.nextInt(words.length)];
+		int copies = random.nextDouble() < density ? runLength : 1;
+		for (int k = 0; k < copies; k++)
+		{
+			sb.append(vary(word));
+			if (punctuationEvery > 0 && random.nextInt(punctuationEvery) == 0)
+			{
+				sb.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+			}
+			sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+		}
+	}
+
+	// Helper method that changes the case of a word now and then
+	private String vary(String word)
+	{
+		if (!varyCase)
+		{
+			return word;
+		}
+		switch (random.nextInt(10))
+		{
+		case 0:
+			return word.toUpperCase();
+		case 1:
+			return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+		default:
+			return word;
+		}
+	}
+
+	// Utility method that turns sizes such as "64KB", "16MB" or "1GB" into bytes
+	static long parseSize(String size)
+	{
+		String s = size.trim().toUpperCase();
+		long unit = 1;
+		if (s.endsWith("KB"))
+		{
+			unit = 1L << 10;
+		}
+		else if (s.endsWith("MB"))
+		{
+			unit = 1L << 20;
+		}
+		else if (s.endsWith("GB"))
+		{
+			unit = 1L << 30;
+		}
+		if (unit > 1)
+		{
+			s = s.substring(0, s.length() - 2);
+		}
+		return Long.parseLong(s.trim()) * unit;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Helper methods for the directory trees the benchmarks work on
+final class Trees {
+
+	private static final int FILES_PER_DIR = 50;
+
+	private Trees()
+	{
+	}
+
+	// Generates files text files of about fileSize bytes, FILES_PER_DIR to a directory, two directory levels deep
+	static void generate(Path root, int files, long fileSize, double density) throws IOException
+	{
+		TextGenerator generator = new TextGenerator(42, density, 2, true, "mixed");
+		for (int k = 0; k < files; k++)
+		{
+			int dir = k / FILES_PER_DIR;
+			Path parent = Files.createDirectories(root.resolve("d" + (dir / FILES_PER_DIR)).resolve("d" + dir));
+			generator.write(parent.resolve("f" + k + ".txt"), fileSize);
+		}
+	}
+
+	// Copies a tree over another one, replacing files that are already there
+	static void copy(Path from, Path to) throws IOException
+	{
+		try (Stream<Path> paths = Files.walk(from))
+		{
+			for (Path source : paths.collect(Collectors.toList()))
+			{
+				Path target = to.resolve(from.relativize(source).toString());
+				if (Files.isDirectory(source))
+				{
+					Files.createDirectories(target);
+				}
+				else
+				{
+					Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+	}
+
+	static void delete(Path root) throws IOException
+	{
+		try (Stream<Path> paths = Files.walk(root))
+		{
+			List<Path> all = paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+			for (Path p : all)
+			{
+				Files.delete(p);
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * ByteKernel that classifies and compares a whole vector of bytes at a time (32 with AVX2, 64 with AVX-512) with the incubating
+ * Vector API. Only built on JDK 16 and later (the vector profile of pom.xml) and only loaded by ByteKernel when the program runs
+ * with --add-modules jdk.incubator.vector.
+ *
+ * Most words are only a few bytes long, and for those the loops of ByteKernel are quicker than setting up a vector, so they look
+ * at the first SHORT bytes of a run. From there on a vector is loaded whenever it fits into the array, also when it reaches past
+ * the end of the bytes asked about (the buffers of ByteDupScanner are much bigger than a vector), and whatever is found past the
+ * end is ignored, so only the last vector's worth of an array is left to the byte at a time loops.
+ */
+final class VectorByteKernel extends ByteKernel {
+
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+	private static final int LENGTH = SPECIES.length();
+	// Bytes looked at one at a time before vectors are used
+	private static final int SHORT = 8;
+
+	VectorByteKernel()
+	{
+		// without SIMD registers the Vector API falls back to plain Java, which is far slower than the byte at a time loops
+		if (LENGTH < 16)
+		{
+			throw new UnsupportedOperationException("vectors of " + LENGTH + " bytes");
+		}
+	}
+
+	@Override
+	int findSpace(byte[] buf, int from, int to)
+	{
+		int i = super.findSpace(buf, from, Math.min(to, from + SHORT));
+		if (i < from + SHORT)
+		{
+			return i;
+		}
+		for (; i < to && i + LENGTH <= buf.length; i += LENGTH)
+		{
+			ByteVector v = ByteVector.fromArray(SPECIES, buf, i);
+			int k = isSpace(v).firstTrue();
+			if (k < LENGTH || i + LENGTH >= to)
+			{
+				return Math.min(i + k, to);
+			}
+		}
+		return super.findSpace(buf, Math.min(i, to), to);
+	}
+
+	@Override
+	int skipClass(byte[] buf, int from, int to, boolean word)
+	{
+		int i = super.skipClass(buf, from, Math.min(to, from + SHORT), word);
+		if (i < from + SHORT)
+		{
+			return i;
+		}
+		for (; i < to && i + LENGTH <= buf.length; i += LENGTH)
+		{
+			ByteVector v = ByteVector.fromArray(SPECIES, buf, i);
+			VectorMask<Byte> isWord = isWord(v);
+			VectorMask<Byte> stop = v.compare(VectorOperators.LT, (byte) 0).or(word ? isWord.not() : isWord);
+			int k = stop.firstTrue();
+			if (k < LENGTH || i + LENGTH >= to)
+			{
+				return Math.min(i + k, to);
+			}
+		}
+		return super.skipClass(buf, Math.min(i, to), to, word);
+	}
+
+	@Override
+	boolean equalsIgnoreAsciiCase(byte[] a, int aFrom, byte[] b, int bFrom, int length)
+	{
+		if (length <= SHORT)
+		{
+			return super.equalsIgnoreAsciiCase(a, aFrom, b, bFrom, length);
+		}
+		int k = 0;
+		for (; k < length && aFrom + k + LENGTH <= a.length && bFrom + k + LENGTH <= b.length; k += LENGTH)
+		{
+			ByteVector x = ByteVector.fromArray(SPECIES, a, aFrom + k);
+			ByteVector y = ByteVector.fromArray(SPECIES, b, bFrom + k);
+			// equal, or the same letter in the other case
+			VectorMask<Byte> caseOnly = x.lanewise(VectorOperators.XOR, y).compare(VectorOperators.EQ, (byte) 0x20)
+					.and(isLetter(x));
+			VectorMask<Byte> differ = x.compare(VectorOperators.NE, y).andNot(caseOnly);
+			if (differ.and(SPECIES.indexInRange(k, length)).anyTrue())
+			{
+				return false;
+			}
+		}
+		return k >= length || super.equalsIgnoreAsciiCase(a, aFrom + k, b, bFrom + k, length - k);
+	}
+
+	// Helper methods with the byte classes of ByteKernel (and so of DupScanner) for each lane, bytes that are not ASCII are in none
+	private static VectorMask<Byte> isSpace(ByteVector v)
+	{
+		return v.compare(VectorOperators.EQ, (byte) ' ')
+				.or(v.compare(VectorOperators.GE, (byte) '\t').and(v.compare(VectorOperators.LE, (byte) '\r')));
+	}
+
+	private static VectorMask<Byte> isLetter(ByteVector v)
+	{
+		ByteVector lower = v.lanewise(VectorOperators.OR, (byte) 0x20);
+		return lower.compare(VectorOperators.GE, (byte) 'a').and(lower.compare(VectorOperators.LE, (byte) 'z'));
+	}
+
+	private static VectorMask<Byte> isWord(ByteVector v)
+	{
+		return isLetter(v).or(v.compare(VectorOperators.GE, (byte) '0').and(v.compare(VectorOperators.LE, (byte) '9')))
+				.or(v.compare(VectorOperators.EQ, (byte) '_'));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Direct buffers that are handed out again and again instead of allocating new arrays for each file, so that a run over many
+ * small files leaves next to no garbage behind. Buffers come in size classes, powers of two from MIN_CLASS up to half the
+ * capacity, and a buffer that is given back is kept for the next file that needs its class as long as the buffers kept stay
+ * within the capacity. Buffers of the bigger classes (from IDLE_CLASS up) that have not been needed for IDLE_NANOS are dropped
+ * whenever a buffer is taken or given back, so a few big files do not pin their memory for the rest of a long run, and a thread
+ * that runs out of work should call releaseIdle now and then while it waits (as the workers of WatchDaemon do); the memory of a
+ * dropped buffer goes back once the garbage collector finds it.
+ *
+ * One arena is meant to be confined to one thread (FileUtil keeps one per worker thread in a ThreadLocal), it is not thread safe.
+ */
+public final class BufferArena {
+
+	static final int MIN_CLASS = 4 * 1024;
+	static final int IDLE_CLASS = 64 * 1024;
+	static final long IDLE_NANOS = 10L * 1000 * 1000 * 1000;
+
+	private final long capacity;
+	private final int largest;
+	// Buffers kept for each class, and when a buffer of each class was last taken
+	private final ArrayDeque<ByteBuffer>[] free;
+	private final long[] lastTaken;
+	private long kept;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferArena(long bytes)
+	{
+		this.capacity = bytes;
+		this.largest = Integer.highestOneBit((int) Math.max(MIN_CLASS, Math.min(1 << 30, bytes / 2)));
+		int classes = Integer.numberOfTrailingZeros(largest) - Integer.numberOfTrailingZeros(MIN_CLASS) + 1;
+		this.free = new ArrayDeque[classes];
+		this.lastTaken = new long[classes];
+		for (int k = 0; k < classes; k++)
+		{
+			free[k] = new ArrayDeque<ByteBuffer>(4);
+		}
+	}
+
+	public long capacity()
+	{
+		return capacity;
+	}
+
+	// Size of the biggest buffer the arena hands out
+	public int largest()
+	{
+		return largest;
+	}
+
+	// Bytes of the buffers kept for reuse
+	public long kept()
+	{
+		return kept;
+	}
+
+	// Returns a cleared buffer with room for at least size bytes and its limit at size, or null if size is above largest()
+	public ByteBuffer take(int size)
+	{
+		if (size > largest)
+		{
+			return null;
+		}
+		long now = System.nanoTime();
+		releaseIdle(now);
+		int k = classOf(size);
+		lastTaken[k] = now;
+		ByteBuffer buffer = free[k].pollLast();
+		if (buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(MIN_CLASS << k);
+		}
+		else
+		{
+			kept -= buffer.capacity();
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	// Gives back a buffer that take returned, which is kept if there is room for it
+	public void give(ByteBuffer buffer)
+	{
+		releaseIdle(System.nanoTime());
+		if (kept + buffer.capacity() <= capacity)
+		{
+			free[classOf(buffer.capacity())].addLast(buffer);
+			kept += buffer.capacity();
+		}
+	}
+
+	// Drops the kept buffers of the classes from IDLE_CLASS up that have not been taken since IDLE_NANOS before now
+	void releaseIdle(long now)
+	{
+		for (int k = classOf(IDLE_CLASS); k < free.length; k++)
+		{
+			if (!free[k].isEmpty() && now - lastTaken[k] > IDLE_NANOS)
+			{
+				kept -= (long) free[k].size() * (MIN_CLASS << k);
+				free[k].clear();
+			}
+		}
+	}
+
+	// Helper method that returns the index of the smallest class that holds size bytes
+	private static int classOf(int size)
+	{
+		return size <= MIN_CLASS ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_CLASS);
+	}
+}
@@ -0,0 +1,610 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * DupScanner for UTF-8 encoded text that works on the bytes directly: nothing is decoded or encoded, the text between duplicates
+ * is copied to the output byte for byte, and the window holds bytes instead of chars. For valid UTF-8 the output is the UTF-8
+ * encoding of what DupScanner (and so the regex) produces for the decoded text. Bytes that are not valid UTF-8 are kept as they are
+ * and count as characters that are neither word characters nor whitespace (like the replacement character they would decode to),
+ * but two such bytes only match each other in a duplicate if they are the same bytes.
+ *
+ * Everything the regex looks at is ASCII except for \b, so scanning, splitting tokens and comparing words (the (?i) of the regex
+ * only folds ASCII case, other characters have to be equal, which for UTF-8 means equal bytes) all stay on bytes, with a table
+ * lookup for each ASCII byte. Only \b next to a non-ASCII byte decodes the character there. See DupScanner for how the regex is
+ * mirrored, this class follows it step by step. The loops over runs of bytes are left to a ByteKernel, which can be a vectorized
+ * one (see there). Instances are not thread safe.
+ */
+public final class ByteDupScanner {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	// Classes of the ASCII bytes (bytes from 0x80 up are parts of multi-byte characters and are looked at one by one)
+	private static final byte OTHER = 0;
+	private static final byte SPACE = 1;
+	private static final byte PUNCT = 2;
+	private static final byte WORD = 4;
+	private static final byte[] ASCII_CLASS = new byte[128];
+	static
+	{
+		for (int c = 0; c < 128; c++)
+		{
+			ASCII_CLASS[c] = DupScanner.isSpace((char) c) ? SPACE : DupScanner.isPunct((char) c) ? PUNCT
+					: DupScanner.isWord(c) ? WORD : OTHER;
+		}
+	}
+
+	// Code point standing in for bytes that are not valid UTF-8
+	private static final int MALFORMED = 0xFFFD;
+
+	private final ByteKernel kernel;
+	private OutputStream out;
+
+	// Window of input that has not been discarded yet, buf[0, emitted) has already been written out (or dropped as a duplicate)
+	private byte[] buf = new byte[CHUNK_SIZE];
+	private int count;
+	private int emitted;
+	// Next candidate position, or the end of the last repetition while a run of duplicates is being followed
+	private int pos;
+	// End of the whitespace delimited token holding pos, how far a still unterminated token has been scanned, and where group 1 ends
+	private int tokenEnd;
+	private int tokenScanned;
+	private int groupEnd;
+	// What \b needs to know about the discarded input in front of the window
+	private boolean leftWord;
+	private boolean leftBase;
+	// End of the last character nextCandidate looked at and whether it is a word character, which is what \b needs next
+	private int classifiedEnd;
+	private boolean classifiedWord;
+
+	// Run state: the first instance of the word and the punctuation to carry (group 2 if present, otherwise the last group 4)
+	private boolean inRun;
+	private byte[] word = new byte[64];
+	private int wordLength;
+	private int punct;
+	private boolean fixedPunct;
+
+	private boolean eof;
+	private boolean changed;
+	private long removed;
+
+	public ByteDupScanner(OutputStream out)
+	{
+		this(out, ByteKernel.DEFAULT);
+	}
+
+	ByteDupScanner(OutputStream out, ByteKernel kernel)
+	{
+		this.kernel = kernel;
+		this.out = out;
+		reset();
+	}
+
+	// Prepares the scanner for a new input that goes to out, keeping the buffers it has grown so far
+	public void reset(OutputStream out)
+	{
+		this.out = out;
+		reset();
+	}
+
+	// Prepares the scanner for a new input
+	public void reset()
+	{
+		count = 0;
+		emitted = 0;
+		pos = 0;
+		tokenEnd = -1;
+		tokenScanned = -1;
+		groupEnd = -1;
+		leftWord = false;
+		leftBase = false;
+		classifiedEnd = -1;
+		inRun = false;
+		eof = false;
+		changed = false;
+		removed = 0;
+	}
+
+	// Pushes the next part of the input through the scanner
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		int end = off + len;
+		while (off < end)
+		{
+			int n = Math.min(reserve(), end - off);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			scan();
+		}
+	}
+
+	// Pushes the remaining bytes of src through the scanner (src is left at its limit)
+	public void write(ByteBuffer src) throws IOException
+	{
+		while (src.hasRemaining())
+		{
+			int n = Math.min(reserve(), src.remaining());
+			src.get(buf, count, n);
+			count += n;
+			scan();
+		}
+	}
+
+	// Signals the end of the input and writes out whatever is left. Returns true if at least one duplicate was eliminated.
+	public boolean finish() throws IOException
+	{
+		eof = true;
+		scan();
+		emit(emitted, count);
+		emitted = count;
+		return changed;
+	}
+
+	// Number of duplicate words dropped since the last reset
+	public long duplicatesRemoved()
+	{
+		return removed;
+	}
+
+	/*
+	 * Helper method that discards the input that has been dealt with and makes room for at least one chunk (or for one more byte when
+	 * the undecided part of the input already fills the buffer), returning the free space.
+	 */
+	private int reserve()
+	{
+		int cut = emitted;
+		// never split a character, the one before the window has to stay readable for \b
+		while (cut > 0 && cut < count && isInterior(cut))
+		{
+			cut--;
+		}
+		if (cut > 0)
+		{
+			boolean word = wordBefore(cut);
+			leftBase = baseBefore(cut);
+			leftWord = word;
+			System.arraycopy(buf, cut, buf, 0, count - cut);
+			count -= cut;
+			emitted -= cut;
+			pos -= cut;
+			tokenEnd -= cut;
+			tokenScanned -= cut;
+			groupEnd -= cut;
+			classifiedEnd -= cut;
+		}
+		if (buf.length - count < CHUNK_SIZE && count > buf.length / 2)
+		{
+			byte[] bigger = new byte[Math.max(buf.length * 2, count + CHUNK_SIZE)];
+			System.arraycopy(buf, 0, bigger, 0, count);
+			buf = bigger;
+		}
+		return buf.length - count;
+	}
+
+	/*
+	 * Helper method that moves through the buffered input as far as it can decide anything. It returns when it needs to see more
+	 * input than has been written so far, after writing out the text in front of the current position (which can no longer be part
+	 * of a duplicate).
+	 */
+	private void scan() throws IOException
+	{
+		while (inRun ? continueRun() : nextCandidate())
+		{
+		}
+		if (!inRun && pos > emitted)
+		{
+			emit(emitted, pos);
+			emitted = pos;
+		}
+	}
+
+	// Helper method that looks at the candidate at pos, returns false if more input is needed
+	private boolean nextCandidate() throws IOException
+	{
+		if (pos >= count)
+		{
+			return false;
+		}
+		byte b = buf[pos];
+		if (b >= 0 && ASCII_CLASS[b] == SPACE)
+		{
+			pos++;
+			return true;
+		}
+		if (pos >= tokenEnd)
+		{
+			int end = kernel.findSpace(buf, Math.max(pos + 1, tokenScanned), count);
+			if (end == count && !eof)
+			{
+				tokenScanned = end;
+				return false;
+			}
+			tokenEnd = end;
+			groupEnd = groupEnd(end);
+		}
+		if (pos >= groupEnd)
+		{
+			// no match starts in the rest of the token
+			pos = tokenEnd;
+			return true;
+		}
+		// the middle of a character is no place for \b
+		if (b < 0 && isInterior(pos))
+		{
+			pos++;
+			return true;
+		}
+		/*
+		 * Walk the characters of the token up to the first one that \b comes before. The character just looked at is the one before
+		 * the next, so each character is decoded once, and only non-ASCII ones at all.
+		 */
+		boolean before = pos == classifiedEnd ? classifiedWord : wordBefore(pos);
+		// ASCII characters on the same side of \b as the one before are passed over in one go
+		int i = kernel.skipClass(buf, pos, groupEnd, before);
+		if (i > pos)
+		{
+			classifiedEnd = i;
+			classifiedWord = before;
+			if (i >= groupEnd)
+			{
+				pos = i;
+				return true;
+			}
+		}
+		boolean at;
+		while (true)
+		{
+			byte c = buf[i];
+			int size = 1;
+			if (c >= 0)
+			{
+				at = ASCII_CLASS[c] == WORD;
+			}
+			else
+			{
+				// the whole character has to be there to tell what it is
+				if (!eof && i + sequenceLength(c) > count)
+				{
+					pos = i;
+					classifiedEnd = i;
+					classifiedWord = before;
+					return false;
+				}
+				int codePoint = MALFORMED;
+				if (isValidSequence(i))
+				{
+					size = sequenceLength(c);
+					codePoint = decode(i);
+				}
+				at = DupScanner.isWord(codePoint) || (DupScanner.isNonSpacingMark(codePoint) && baseBefore(i));
+			}
+			classifiedEnd = i + size;
+			classifiedWord = at;
+			if (before != at)
+			{
+				break;
+			}
+			i += size;
+			if (i >= groupEnd)
+			{
+				pos = i;
+				return true;
+			}
+		}
+		pos = i;
+		int length = groupEnd - pos;
+		int next = repetitionEnd(buf, pos, length, tokenEnd);
+		if (next == NEED_INPUT)
+		{
+			return false;
+		}
+		if (next == NO_MATCH)
+		{
+			pos = classifiedEnd;
+			return true;
+		}
+		// A duplicate follows: write out everything up to and including the first instance of the word and follow the run
+		emit(emitted, groupEnd);
+		if (word.length < length)
+		{
+			word = new byte[Math.max(word.length * 2, length)];
+		}
+		System.arraycopy(buf, pos, word, 0, length);
+		wordLength = length;
+		fixedPunct = groupEnd < tokenEnd;
+		punct = fixedPunct ? buf[groupEnd] : -1;
+		takeRepetition(next);
+		inRun = true;
+		return true;
+	}
+
+	// Helper method that looks for one more repetition of the word while in a run, returns false if more input is needed
+	private boolean continueRun() throws IOException
+	{
+		int next = repetitionEnd(word, 0, wordLength, pos);
+		if (next == NEED_INPUT)
+		{
+			return false;
+		}
+		if (next != NO_MATCH)
+		{
+			takeRepetition(next);
+			return true;
+		}
+		// The run is over, the whole match is replaced by the first instance of the word and the carried punctuation
+		if (punct >= 0)
+		{
+			out.write(punct);
+		}
+		changed = true;
+		inRun = false;
+		return true;
+	}
+
+	// Helper method that drops the repetition ending at next, keeping its punctuation as group 4 unless group 2 is carried
+	private void takeRepetition(int next)
+	{
+		if (!fixedPunct && isPunct(buf[next - 1]))
+		{
+			punct = buf[next - 1];
+		}
+		pos = next;
+		emitted = next;
+		removed++;
+	}
+
+	private static final int NO_MATCH = -1;
+	private static final int NEED_INPUT = -2;
+
+	/*
+	 * Helper method that checks whether whitespace, the word and optional punctuation follow at index from. Returns the end of that
+	 * repetition, NO_MATCH, or NEED_INPUT if that cannot be told from the input written so far. Bytes are equal, or they are the same
+	 * ASCII letter in different case (which differ in bit 0x20 alone).
+	 */
+	private int repetitionEnd(byte[] word, int wordStart, int length, int from)
+	{
+		int w = from;
+		while (w < count && isSpace(buf[w]))
+		{
+			w++;
+		}
+		if (w == count && !eof)
+		{
+			return NEED_INPUT;
+		}
+		if (w == from)
+		{
+			return NO_MATCH;
+		}
+		int available = Math.min(length, count - w);
+		if (!kernel.equalsIgnoreAsciiCase(word, wordStart, buf, w, available))
+		{
+			return NO_MATCH;
+		}
+		if (available < length)
+		{
+			return eof ? NO_MATCH : NEED_INPUT;
+		}
+		int end = w + length;
+		if (end == count)
+		{
+			return eof ? end : NEED_INPUT;
+		}
+		return isPunct(buf[end]) ? end + 1 : end;
+	}
+
+	/*
+	 * Helper method that works out where group 1 ends for any candidate starting in the token that ends at end, or returns -1 if no
+	 * match can start in the token (a match needs whitespace after it, and group 1 must end at a word boundary).
+	 */
+	private int groupEnd(int end)
+	{
+		if (end >= count)
+		{
+			return -1;
+		}
+		if (wordBefore(end))
+		{
+			return end;
+		}
+		if (isPunct(buf[end - 1]) && wordBefore(end - 1))
+		{
+			return end - 1;
+		}
+		return -1;
+	}
+
+	private void emit(int from, int to) throws IOException
+	{
+		if (from < to)
+		{
+			out.write(buf, from, to - from);
+		}
+	}
+
+	private static boolean isSpace(byte b)
+	{
+		return b >= 0 && ASCII_CLASS[b] == SPACE;
+	}
+
+	private static boolean isPunct(byte b)
+	{
+		return b >= 0 && ASCII_CLASS[b] == PUNCT;
+	}
+
+	/*
+	 * Helper methods that tell whether the character before / at index i counts as a word character for \b, with the same treatment
+	 * of non spacing marks as DupScanner.
+	 */
+	private boolean wordBefore(int i)
+	{
+		if (i <= 0)
+		{
+			return leftWord;
+		}
+		byte b = buf[i - 1];
+		if (b >= 0)
+		{
+			return ASCII_CLASS[b] == WORD;
+		}
+		int start = sequenceStartBefore(i);
+		int codePoint = start < 0 ? MALFORMED : decode(start);
+		return DupScanner.isWord(codePoint) || (DupScanner.isNonSpacingMark(codePoint) && baseBefore(i));
+	}
+
+	private boolean wordAt(int i)
+	{
+		if (i >= count)
+		{
+			return false;
+		}
+		byte b = buf[i];
+		if (b >= 0)
+		{
+			return ASCII_CLASS[b] == WORD;
+		}
+		int codePoint = isValidSequence(i) ? decode(i) : MALFORMED;
+		return DupScanner.isWord(codePoint) || (DupScanner.isNonSpacingMark(codePoint) && baseBefore(i));
+	}
+
+	/*
+	 * Helper method that tells whether the non spacing marks ending at index end lead back to a letter or digit, like
+	 * DupScanner.hasBaseCharacter. That one steps back one UTF-16 unit at a time and so reads a supplementary character from its low
+	 * surrogate alone, which ends the search, and a supplementary character does the same here.
+	 */
+	private boolean baseBefore(int end)
+	{
+		int i = end;
+		while (i > 0)
+		{
+			int start;
+			int codePoint;
+			if (buf[i - 1] >= 0)
+			{
+				start = i - 1;
+				codePoint = buf[start];
+			}
+			else
+			{
+				start = sequenceStartBefore(i);
+				codePoint = start < 0 ? MALFORMED : decode(start);
+			}
+			if (codePoint >= 0x10000)
+			{
+				return false;
+			}
+			if (Character.isLetterOrDigit(codePoint))
+			{
+				return true;
+			}
+			if (!DupScanner.isNonSpacingMark(codePoint))
+			{
+				return false;
+			}
+			i = start;
+		}
+		return leftBase;
+	}
+
+	// Number of bytes in a UTF-8 sequence starting with lead byte b (1 for bytes that cannot start one)
+	private static int sequenceLength(byte b)
+	{
+		int lead = b & 0xFF;
+		return lead >= 0xF0 ? (lead <= 0xF4 ? 4 : 1) : lead >= 0xE0 ? 3 : lead >= 0xC2 ? 2 : 1;
+	}
+
+	/*
+	 * Helper method that tells whether the bytes at i are a complete, valid UTF-8 sequence (no overlong forms, surrogates or code
+	 * points above U+10FFFF, the same rules the JDK decoder applies).
+	 */
+	private boolean isValidSequence(int i)
+	{
+		int lead = buf[i] & 0xFF;
+		int length = sequenceLength(buf[i]);
+		if (length == 1 || i + length > count)
+		{
+			return false;
+		}
+		int second = buf[i + 1] & 0xFF;
+		if ((second & 0xC0) != 0x80 || (lead == 0xE0 && second < 0xA0) || (lead == 0xED && second >= 0xA0)
+				|| (lead == 0xF0 && second < 0x90) || (lead == 0xF4 && second >= 0x90))
+		{
+			return false;
+		}
+		for (int k = 2; k < length; k++)
+		{
+			if ((buf[i + k] & 0xC0) != 0x80)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Helper method that decodes the valid sequence at i
+	private int decode(int i)
+	{
+		int lead = buf[i] & 0xFF;
+		switch (sequenceLength(buf[i]))
+		{
+		case 2:
+			return ((lead & 0x1F) << 6) | (buf[i + 1] & 0x3F);
+		case 3:
+			return ((lead & 0x0F) << 12) | ((buf[i + 1] & 0x3F) << 6) | (buf[i + 2] & 0x3F);
+		default:
+			return ((lead & 0x07) << 18) | ((buf[i + 1] & 0x3F) << 12) | ((buf[i + 2] & 0x3F) << 6) | (buf[i + 3] & 0x3F);
+		}
+	}
+
+	// Helper method that returns the start of the valid sequence ending right before index end, or -1 if the byte there is not the end of one
+	private int sequenceStartBefore(int end)
+	{
+		for (int start = end - 1; start >= 0 && start >= end - 4; start--)
+		{
+			if ((buf[start] & 0xC0) != 0x80)
+			{
+				return start + sequenceLength(buf[start]) == end && isValidSequence(start) ? start : -1;
+			}
+		}
+		return -1;
+	}
+
+	// Helper method that tells whether index i is inside (not at the start of) a valid sequence
+	private boolean isInterior(int i)
+	{
+		if ((buf[i] & 0xC0) != 0x80)
+		{
+			return false;
+		}
+		for (int start = i - 1; start >= 0 && start >= i - 3; start--)
+		{
+			if ((buf[start] & 0xC0) != 0x80)
+			{
+				return start + sequenceLength(buf[start]) > i && isValidSequence(start);
+			}
+		}
+		return false;
+	}
+}
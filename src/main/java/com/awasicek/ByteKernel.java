@@ -0,0 +1,107 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+/*
+ * The loops of ByteDupScanner that look at one byte after another: finding the end of a token, skipping the characters of a token
+ * that are on the same side of \b, and comparing a word with its repetition. This class does it a byte at a time.
+ * VectorByteKernel (in src/main/java-vector, built by the vector profile on JDK 16 and later) does it 16 to 64 bytes at a time
+ * with the incubating Vector API, and is used instead when the jdk.incubator.vector module is there, i.e. when the program is
+ * run with --add-modules jdk.incubator.vector, unless -Delimdups.vector=false. Both stop at the first byte that is not ASCII and
+ * leave it to ByteDupScanner, which decodes it, so they give the same answers for any input.
+ */
+class ByteKernel {
+
+	// The whitespace and word characters among the ASCII bytes
+	private static final boolean[] SPACE = new boolean[128];
+	private static final boolean[] WORD = new boolean[128];
+	static
+	{
+		for (int c = 0; c < 128; c++)
+		{
+			SPACE[c] = DupScanner.isSpace((char) c);
+			WORD[c] = DupScanner.isWord(c);
+		}
+	}
+
+	// Kernel of the scanners, the vector one if it can be loaded
+	static final ByteKernel DEFAULT = load();
+
+	private static ByteKernel load()
+	{
+		if (!Boolean.parseBoolean(System.getProperty("elimdups.vector", "true"))
+				|| !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+		{
+			return new ByteKernel();
+		}
+		try
+		{
+			return (ByteKernel) Class.forName("com.awasicek.VectorByteKernel").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError | RuntimeException e)
+		{
+			// built without the vector profile, or vectors too short to pay off here
+			return new ByteKernel();
+		}
+	}
+
+	// Index of the first whitespace byte in buf[from, to), or to
+	int findSpace(byte[] buf, int from, int to)
+	{
+		int i = from;
+		while (i < to && (buf[i] < 0 || !SPACE[buf[i]]))
+		{
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * Index of the first byte in buf[from, to) that is not ASCII or is a word character when word is false (not one when word is
+	 * true), or to
+	 */
+	int skipClass(byte[] buf, int from, int to, boolean word)
+	{
+		int i = from;
+		while (i < to && buf[i] >= 0 && WORD[buf[i]] == word)
+		{
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * Whether a[aFrom, aFrom + length) and b[bFrom, bFrom + length) are the same bytes, except that ASCII letters match in either
+	 * case (which differ in bit 0x20 alone)
+	 */
+	boolean equalsIgnoreAsciiCase(byte[] a, int aFrom, byte[] b, int bFrom, int length)
+	{
+		for (int k = 0; k < length; k++)
+		{
+			int b1 = a[aFrom + k];
+			int b2 = b[bFrom + k];
+			if (b1 != b2 && ((b1 ^ b2) != 0x20 || (char) ((b1 | 0x20) - 'a') > 'z' - 'a'))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Results of files by their content, so that byte-identical copies of a file (templates, replicated exports) are scanned once: a
+ * copy of a file known to be clean is left alone and a copy of a file that had duplicates gets the same result written without
+ * being scanned. Holds up to a number of bytes of results and drops the least recently used ones beyond that; a result bigger than
+ * an eighth of that is not kept at all, so that one big file cannot flush everything else out.
+ *
+ * Contents are told apart by their length and a 128-bit hash, which is many times faster than scanning. It is no cryptographic
+ * hash, but it is seeded afresh for each run of the program, so contents that happen to collide in one run are no more likely
+ * than any others to collide in the next. Safe for use by several threads.
+ */
+public final class ContentCache {
+
+	// Bytes an entry takes up besides its result, roughly
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final long SEED1;
+	private static final long SEED2;
+
+	static
+	{
+		SecureRandom random = new SecureRandom();
+		SEED1 = random.nextLong();
+		SEED2 = random.nextLong();
+	}
+
+	private final long capacity;
+	private final LinkedHashMap<Key, Result> entries = new LinkedHashMap<Key, Result>(256, 0.75f, true);
+	private long used;
+	private long hits;
+	private long misses;
+
+	public ContentCache(long bytes)
+	{
+		this.capacity = bytes;
+	}
+
+	// What eliminating the duplicates of some content gave: its output (null if it was clean) and the number of duplicates
+	public static final class Result {
+		public final byte[] output;
+		public final long duplicates;
+
+		Result(byte[] output, long duplicates)
+		{
+			this.output = output;
+			this.duplicates = duplicates;
+		}
+	}
+
+	// Returns the result for content with this key, null if there is none
+	public synchronized Result get(Key key)
+	{
+		Result result = entries.get(key);
+		if (result == null)
+		{
+			misses++;
+		}
+		else
+		{
+			hits++;
+		}
+		return result;
+	}
+
+	// Remembers that content with this key is clean
+	public void putClean(Key key)
+	{
+		put(key, new Result(null, 0));
+	}
+
+	// Remembers the output of content with this key (the array is kept, so it must not be changed afterwards)
+	public void put(Key key, byte[] output, long duplicates)
+	{
+		put(key, new Result(output, duplicates));
+	}
+
+	public synchronized long hits()
+	{
+		return hits;
+	}
+
+	public synchronized long misses()
+	{
+		return misses;
+	}
+
+	// Returns true if an output of this many bytes would be kept (so that a caller can spare itself copying one that would not)
+	public boolean holds(long bytes)
+	{
+		return ENTRY_OVERHEAD + bytes <= capacity / 8;
+	}
+
+	private synchronized void put(Key key, Result result)
+	{
+		long cost = cost(result);
+		if (!holds(cost - ENTRY_OVERHEAD))
+		{
+			return;
+		}
+		Result old = entries.put(key, result);
+		used += cost - (old == null ? 0 : cost(old));
+		for (Iterator<Result> eldest = entries.values().iterator(); used > capacity && eldest.hasNext();)
+		{
+			used -= cost(eldest.next());
+			eldest.remove();
+		}
+	}
+
+	private static long cost(Result result)
+	{
+		return ENTRY_OVERHEAD + (result.output == null ? 0 : result.output.length);
+	}
+
+	// Returns the key of the first length bytes of content
+	public static Key key(byte[] content, int length)
+	{
+		/*
+		 * Two lanes of multiply, rotate and multiply (the MurmurHash3 step) over every 8 bytes, with different seeds and constants,
+		 * mixed together at the end. A run through memory at several GB/s, well ahead of the scanner.
+		 */
+		long h1 = SEED1;
+		long h2 = SEED2;
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+		{
+			long word = (long) LONGS.get(content, i);
+			h1 = Long.rotateLeft(h1 ^ Long.rotateLeft(word * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL, 27) * 5 + 0x52dce729;
+			h2 = Long.rotateLeft(h2 ^ Long.rotateLeft(word * 0x4cf5ad432745937fL, 33) * 0x87c37b91114253d5L, 31) * 5 + 0x38495ab5;
+		}
+		long tail = 0;
+		for (int shift = 0; i < length; i++, shift += 8)
+		{
+			tail |= (content[i] & 0xFFL) << shift;
+		}
+		h1 ^= Long.rotateLeft(tail * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL;
+		h2 ^= Long.rotateLeft(tail * 0x4cf5ad432745937fL, 33) * 0x87c37b91114253d5L;
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = mix(h1);
+		h2 = mix(h2);
+		h1 += h2;
+		h2 += h1;
+		return new Key(length, h1, h2);
+	}
+
+	// The MurmurHash3 finalizer, which makes every bit of the result depend on every bit of h
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public static final class Key {
+		private final int length;
+		private final long h1;
+		private final long h2;
+
+		Key(int length, long h1, long h2)
+		{
+			this.length = length;
+			this.h1 = h1;
+			this.h2 = h2;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Key))
+			{
+				return false;
+			}
+			Key key = (Key) other;
+			return length == key.length && h1 == key.h1 && h2 == key.h2;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int) h1;
+		}
+	}
+
+	// Number of results kept
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs directories over several worker JVMs (--processes), for trees too big for the heap, GC and walk of one JVM. The tree is
+ * split into shards by directory: a directory is split into a shard for the files directly in it and one for each of its
+ * subdirectories, breadth first, until there are about four shards per worker, and the remaining directories are shards with
+ * everything below them. Each worker is this program started again with the same command line and --worker, and runs every
+ * shard it is handed through FileUtil.searchDirsAndDestroyDups like a directory run of its own, with its own threads.
+ *
+ * Each worker talks to its own thread here over a socket on the loopback interface, and has to show a token that is handed to it
+ * in its environment before it is given anything. A shard is leased to one worker at a time: when the worker dies (its socket
+ * closes) before it reports the shard done, a new worker is started and the shard leased again, up to MAX_ATTEMPTS times, after
+ * which the shard is counted as failed. Files the dead worker had already rewritten are processed again, which mostly finds them
+ * clean but not always (the repetition of a word only has to start the next word, so "it's? Served" loses its S on a second run).
+ * A worker sends the lines of the per-file report as it goes (when there is a report), which are held back until the shard is
+ * done so that a shard leased again is not reported twice, and the figures of each shard when it is done, which are added to the
+ * RunMetrics of this process, so the end report and the metrics cover the whole run. Files with more than one link are claimed
+ * here, so that only one worker ever processes a file however many of its links there are and wherever they are.
+ *
+ * Messages are a kind byte followed by its fields in DataOutput form.
+ */
+public final class Coordinator {
+
+	// Coordinator to worker: a shard (id, starting directory, directory, recursive), and the end of the work
+	static final int SHARD = 1;
+	static final int STOP = 2;
+	// Worker to coordinator: a line of the report, a claim of a file with more than one link (answered with a boolean), a shard done
+	static final int REPORT_LINE = 3;
+	static final int CLAIM = 4;
+	static final int DONE = 5;
+	// Environment variable the token is handed to a worker in (rather than on its command line, where anybody can read it)
+	static final String TOKEN_VARIABLE = "ELIMDUPS_WORKER_TOKEN";
+
+	// Times a shard is leased before it is given up on
+	private static final int MAX_ATTEMPTS = 3;
+	// How long a worker that was started has to connect
+	private static final int CONNECT_TIMEOUT_MILLIS = 60000;
+
+	private final RunOptions options;
+	private final String token;
+	private final LinkedBlockingDeque<Shard> pending = new LinkedBlockingDeque<Shard>();
+	private final AtomicInteger unfinished = new AtomicInteger();
+	// Files with more than one link claimed so far, by file key, and the lease that claimed each (see Worker.process)
+	private final Map<String, Long> claims = new ConcurrentHashMap<String, Long>();
+
+	public Coordinator(RunOptions options)
+	{
+		this.options = options;
+		byte[] secret = new byte[24];
+		new SecureRandom().nextBytes(secret);
+		this.token = Base64.getUrlEncoder().encodeToString(secret);
+	}
+
+	// A directory to process (with everything below it if recursive), below the starting directory its globs are matched from
+	static final class Shard {
+		final int id;
+		final Path root;
+		final Path dir;
+		final boolean recursive;
+		int attempts;
+
+		Shard(int id, Path root, Path dir, boolean recursive)
+		{
+			this.id = id;
+			this.root = root;
+			this.dir = dir;
+			this.recursive = recursive;
+		}
+	}
+
+	// Processes the directories with options.processes workers, returning once every shard is done or given up on
+	public void run(List<Path> dirs)
+	{
+		int target = options.processes * 4;
+		for (Path dir : dirs)
+		{
+			pending.addAll(split(dir, target, pending.size()));
+		}
+		unfinished.set(pending.size());
+		List<Thread> leases = new ArrayList<Thread>();
+		for (int k = 0; k < Math.min(options.processes, pending.size()); k++)
+		{
+			Thread lease = new Thread(this::lease, "elimdups-worker-" + k);
+			lease.start();
+			leases.add(lease);
+		}
+		for (Thread lease : leases)
+		{
+			try
+			{
+				lease.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Helper method that splits a directory into shards, breadth first, until there are about target of them. A directory that
+	 * cannot be listed here is left whole to a worker (which reports it).
+	 */
+	private static List<Shard> split(Path root, int target, int firstId)
+	{
+		FileSelector selector = new FileSelector(root);
+		List<Shard> shards = new ArrayList<Shard>();
+		Deque<Path> whole = new ArrayDeque<Path>();
+		whole.add(root);
+		while (!whole.isEmpty() && shards.size() + whole.size() < target)
+		{
+			Path dir = whole.poll();
+			List<Path> subdirs = new ArrayList<Path>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+			{
+				for (Path entry : entries)
+				{
+					// links to directories are not followed, as in a walk
+					if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) && !selector.isExcluded(entry))
+					{
+						subdirs.add(entry);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				shards.add(new Shard(firstId + shards.size(), root, dir, true));
+				continue;
+			}
+			shards.add(new Shard(firstId + shards.size(), root, dir, false));
+			whole.addAll(subdirs);
+		}
+		for (Path dir : whole)
+		{
+			shards.add(new Shard(firstId + shards.size(), root, dir, true));
+		}
+		return shards;
+	}
+
+	/*
+	 * Helper method run by each worker thread: starts a worker and leases it shards until there are none left, starting a new
+	 * worker whenever one dies
+	 */
+	private void lease()
+	{
+		Worker worker = null;
+		try
+		{
+			while (unfinished.get() > 0)
+			{
+				Shard shard = pending.poll(100, TimeUnit.MILLISECONDS);
+				if (shard == null)
+				{
+					// the others are still at work, and may yet give a shard back
+					continue;
+				}
+				try
+				{
+					if (worker == null)
+					{
+						worker = start();
+					}
+					worker.process(shard);
+					unfinished.decrementAndGet();
+				}
+				catch (IOException e)
+				{
+					System.err.println("Worker failed on " + shard.dir + ". " + e);
+					if (worker != null)
+					{
+						worker.kill();
+						worker = null;
+					}
+					giveBack(shard, e);
+				}
+			}
+			if (worker != null)
+			{
+				worker.stop();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			if (worker != null)
+			{
+				worker.kill();
+			}
+		}
+	}
+
+	// Helper method that leases a shard whose worker died again (first, as it may be the oldest work left), or gives up on it
+	private void giveBack(Shard shard, IOException e)
+	{
+		if (++shard.attempts < MAX_ATTEMPTS)
+		{
+			pending.addFirst(shard);
+			return;
+		}
+		System.err.println("Giving up on " + shard.dir + " after " + MAX_ATTEMPTS + " workers failed on it.");
+		RunMetrics.fileFailed(shard.dir, e);
+		unfinished.decrementAndGet();
+	}
+
+	// Helper method that starts a worker JVM with the command line of this one and waits for it to connect
+	private Worker start() throws IOException
+	{
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			List<String> command = new ArrayList<String>();
+			command.add(ProcessHandle.current().info().command()
+					.orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+			// the heap settings, system properties, added modules (the Vector API) and class data sharing archive (of the launcher) of
+			// this JVM, but not its agents or recordings (their ports and files would clash)
+			for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+			{
+				if (arg.startsWith("-Xm") || arg.startsWith("-Xss") || arg.startsWith("-D") || arg.startsWith("--add-modules=")
+						|| arg.startsWith("-XX:SharedArchiveFile=") || arg.startsWith("-Xlog:cds"))
+				{
+					command.add(arg);
+				}
+			}
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ElimDups.class.getName());
+			command.add("--worker");
+			command.add(String.valueOf(server.getLocalPort()));
+			command.addAll(options.args);
+			ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+			builder.environment().put(TOKEN_VARIABLE, token);
+			Process process = builder.start();
+			server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+			Socket socket = null;
+			try
+			{
+				socket = server.accept();
+				Worker worker = new Worker(process, socket);
+				if (!token.equals(worker.in.readUTF()))
+				{
+					throw new IOException("a worker showed the wrong token");
+				}
+				return worker;
+			}
+			catch (IOException e)
+			{
+				process.destroyForcibly();
+				if (socket != null)
+				{
+					socket.close();
+				}
+				throw e;
+			}
+		}
+	}
+
+	// A worker JVM and the connection to it
+	private final class Worker {
+		private final Process process;
+		private final Socket socket;
+		final DataInputStream in;
+		private final DataOutputStream out;
+
+		Worker(Process process, Socket socket) throws IOException
+		{
+			this.process = process;
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		// Hands the worker a shard and answers it until it is done with it, adding its figures to RunMetrics
+		void process(Shard shard) throws IOException
+		{
+			out.writeByte(SHARD);
+			out.writeInt(shard.id);
+			out.writeUTF(shard.root.toString());
+			out.writeUTF(shard.dir.toString());
+			out.writeBoolean(shard.recursive);
+			out.flush();
+			// the report lines of the shard, dropped if the worker dies before it is done
+			List<String> lines = new ArrayList<String>();
+			while (true)
+			{
+				int kind = in.readUnsignedByte();
+				if (kind == REPORT_LINE)
+				{
+					byte[] line = new byte[in.readInt()];
+					in.readFully(line);
+					lines.add(new String(line, StandardCharsets.UTF_8));
+				}
+				else if (kind == CLAIM)
+				{
+					// a shard that is leased again may take over the claims of its earlier lease, whose worker died
+					String key = in.readUTF();
+					long lease = (long) shard.id << 32 | shard.attempts;
+					Long owner = claims.putIfAbsent(key, lease);
+					out.writeBoolean(owner == null
+							|| owner >>> 32 == shard.id && owner != lease && claims.replace(key, owner, lease));
+					out.flush();
+				}
+				else if (kind == DONE && in.readInt() == shard.id)
+				{
+					RunMetrics.mergeFrom(in);
+					for (String line : lines)
+					{
+						RunMetrics.writeLine(line);
+					}
+					return;
+				}
+				else
+				{
+					throw new IOException("unexpected message " + kind + " from worker");
+				}
+			}
+		}
+
+		// Tells the worker there is no more work and waits for it to exit
+		void stop() throws InterruptedException
+		{
+			try
+			{
+				out.writeByte(STOP);
+				out.flush();
+				process.waitFor(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (IOException e)
+			{
+				// it is going away anyway
+			}
+		}
+
+		void kill()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// closing anyway
+			}
+			if (process.isAlive())
+			{
+				process.destroyForcibly();
+			}
+		}
+	}
+}
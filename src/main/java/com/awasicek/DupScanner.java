@@ -0,0 +1,498 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/*
+ * Single pass duplicate eliminator. It produces exactly what replacing every match of FileUtil's regex (see regExNoDups) with
+ * group 1 plus the carried punctuation (group 2, otherwise group 4) produces, but walks the text once from left to right and
+ * appends to the output as it goes instead of recompiling, rescanning and copying the whole text for each match.
+ *
+ * Text is pushed in with write() in chunks of any size and finish() is called at the end of the input. Only the part of the input
+ * that is still undecided is kept (the token being looked at and the whitespace and characters after it), so duplicates that span
+ * a chunk boundary are still found while memory stays at the chunk size plus the longest token or whitespace run. Instances are
+ * not thread safe.
+ *
+ * How the regex is mirrored: a match starts at a word boundary and group 1 (\S+ followed by \b) has to be followed by optional
+ * punctuation and then whitespace, so group 1 always ends either at the end of the whitespace delimited token it starts in (when
+ * the token ends with a word character) or one character before it (when the token ends with a word character plus one of
+ * [!,.;?], which then becomes group 2). That end only depends on the token, so it is worked out once per token. Every word
+ * boundary inside the token before that end is a candidate start, and a candidate matches when at least one repetition of
+ * whitespace, the same characters (ASCII case insensitive, with no boundary required after them, exactly like the \1 backreference)
+ * and optional punctuation follows. Repetitions are taken greedily and group 4 keeps the punctuation of the last repetition that
+ * had any.
+ */
+public final class DupScanner {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private Appendable out;
+
+	// Window of input that has not been discarded yet, buf[0, emitted) has already been written out (or dropped as a duplicate)
+	private char[] buf = new char[CHUNK_SIZE];
+	private int count;
+	private int emitted;
+	// Next candidate position, or the end of the last repetition while a run of duplicates is being followed
+	private int pos;
+	// End of the whitespace delimited token holding pos, how far a still unterminated token has been scanned, and where group 1 ends
+	private int tokenEnd;
+	private int tokenScanned;
+	private int groupEnd;
+	// What \b needs to know about the discarded input in front of the window
+	private boolean leftWord;
+	private boolean leftBase;
+
+	// Run state: the first instance of the word and the punctuation to carry (group 2 if present, otherwise the last group 4)
+	private boolean inRun;
+	private char[] word = new char[64];
+	private int wordLength;
+	private int punct;
+	private boolean fixedPunct;
+
+	private boolean eof;
+	private boolean changed;
+	private long removed;
+
+	public DupScanner(Appendable out)
+	{
+		this.out = out;
+		reset();
+	}
+
+	// Utility method that eliminates duplicates from text and appends the result to out. Returns true if anything was eliminated.
+	public static boolean elimDups(CharSequence text, StringBuilder out)
+	{
+		DupScanner scanner = new DupScanner(out);
+		try
+		{
+			scanner.write(text, 0, text.length());
+			return scanner.finish();
+		}
+		catch (IOException e)
+		{
+			// a StringBuilder does not throw
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Convenience method that returns the text with duplicates eliminated (the same instance if there was nothing to eliminate)
+	public static String elimDups(String text)
+	{
+		StringBuilder out = new StringBuilder(text.length());
+		return elimDups(text, out) ? out.toString() : text;
+	}
+
+	// Prepares the scanner for a new input that goes to out, keeping the buffers it has grown so far
+	public void reset(Appendable out)
+	{
+		this.out = out;
+		reset();
+	}
+
+	// Prepares the scanner for a new input
+	public void reset()
+	{
+		count = 0;
+		emitted = 0;
+		pos = 0;
+		tokenEnd = -1;
+		tokenScanned = -1;
+		groupEnd = -1;
+		leftWord = false;
+		leftBase = false;
+		inRun = false;
+		eof = false;
+		changed = false;
+		removed = 0;
+	}
+
+	// Pushes the next part of the input through the scanner
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		int end = off + len;
+		while (off < end)
+		{
+			int n = Math.min(reserve(), end - off);
+			System.arraycopy(cbuf, off, buf, count, n);
+			count += n;
+			off += n;
+			scan();
+		}
+	}
+
+	public void write(CharSequence text, int start, int end) throws IOException
+	{
+		while (start < end)
+		{
+			int n = Math.min(reserve(), end - start);
+			if (text instanceof String)
+			{
+				((String) text).getChars(start, start + n, buf, count);
+			}
+			else
+			{
+				for (int k = 0; k < n; k++)
+				{
+					buf[count + k] = text.charAt(start + k);
+				}
+			}
+			count += n;
+			start += n;
+			scan();
+		}
+	}
+
+	// Signals the end of the input and writes out whatever is left. Returns true if at least one duplicate was eliminated.
+	public boolean finish() throws IOException
+	{
+		eof = true;
+		scan();
+		emit(emitted, count);
+		emitted = count;
+		return changed;
+	}
+
+	// Number of duplicate words dropped since the last reset
+	public long duplicatesRemoved()
+	{
+		return removed;
+	}
+
+	/*
+	 * Helper method that discards the input that has been dealt with and makes room for at least one chunk (or for one more character
+	 * when the undecided part of the input already fills the buffer), returning the free space.
+	 */
+	private int reserve()
+	{
+		int cut = emitted;
+		// never split a surrogate pair, the character before the window has to stay readable for \b
+		if (cut > 0 && cut < count && Character.isHighSurrogate(buf[cut - 1]) && Character.isLowSurrogate(buf[cut]))
+		{
+			cut--;
+		}
+		if (cut > 0)
+		{
+			boolean word = wordBefore(cut);
+			leftBase = hasBaseCharacter(cut - 1);
+			leftWord = word;
+			System.arraycopy(buf, cut, buf, 0, count - cut);
+			count -= cut;
+			emitted -= cut;
+			pos -= cut;
+			tokenEnd -= cut;
+			tokenScanned -= cut;
+			groupEnd -= cut;
+		}
+		if (buf.length - count < CHUNK_SIZE && count > buf.length / 2)
+		{
+			char[] bigger = new char[Math.max(buf.length * 2, count + CHUNK_SIZE)];
+			System.arraycopy(buf, 0, bigger, 0, count);
+			buf = bigger;
+		}
+		return buf.length - count;
+	}
+
+	/*
+	 * Helper method that moves through the buffered input as far as it can decide anything. It returns when it needs to see more
+	 * input than has been written so far, after writing out the text in front of the current position (which can no longer be part
+	 * of a duplicate).
+	 */
+	private void scan() throws IOException
+	{
+		while (inRun ? continueRun() : nextCandidate())
+		{
+		}
+		if (!inRun && pos > emitted)
+		{
+			emit(emitted, pos);
+			emitted = pos;
+		}
+	}
+
+	// Helper method that looks at the candidate at pos, returns false if more input is needed
+	private boolean nextCandidate() throws IOException
+	{
+		if (pos >= count)
+		{
+			return false;
+		}
+		if (isSpace(buf[pos]))
+		{
+			pos++;
+			return true;
+		}
+		if (pos >= tokenEnd)
+		{
+			int end = Math.max(pos + 1, tokenScanned);
+			while (end < count && !isSpace(buf[end]))
+			{
+				end++;
+			}
+			if (end == count && !eof)
+			{
+				tokenScanned = end;
+				return false;
+			}
+			tokenEnd = end;
+			groupEnd = groupEnd(end);
+		}
+		if (pos >= groupEnd)
+		{
+			pos++;
+			return true;
+		}
+		if (Character.isHighSurrogate(buf[pos]) && pos + 1 == count && !eof)
+		{
+			return false;
+		}
+		if (wordBefore(pos) == wordAt(pos))
+		{
+			pos++;
+			return true;
+		}
+		int length = groupEnd - pos;
+		int next = repetitionEnd(buf, pos, length, tokenEnd);
+		if (next == NEED_INPUT)
+		{
+			return false;
+		}
+		if (next == NO_MATCH)
+		{
+			pos++;
+			return true;
+		}
+		// A duplicate follows: write out everything up to and including the first instance of the word and follow the run
+		emit(emitted, groupEnd);
+		if (word.length < length)
+		{
+			word = new char[Math.max(word.length * 2, length)];
+		}
+		System.arraycopy(buf, pos, word, 0, length);
+		wordLength = length;
+		fixedPunct = groupEnd < tokenEnd;
+		punct = fixedPunct ? buf[groupEnd] : -1;
+		takeRepetition(next);
+		inRun = true;
+		return true;
+	}
+
+	// Helper method that looks for one more repetition of the word while in a run, returns false if more input is needed
+	private boolean continueRun() throws IOException
+	{
+		int next = repetitionEnd(word, 0, wordLength, pos);
+		if (next == NEED_INPUT)
+		{
+			return false;
+		}
+		if (next != NO_MATCH)
+		{
+			takeRepetition(next);
+			return true;
+		}
+		// The run is over, the whole match is replaced by the first instance of the word and the carried punctuation
+		if (punct >= 0)
+		{
+			out.append((char) punct);
+		}
+		changed = true;
+		inRun = false;
+		return true;
+	}
+
+	/*
+	 * Helper method that drops the repetition ending at next, keeping its punctuation as group 4 unless group 2 is carried (the word
+	 * itself always ends with a word character, so trailing punctuation can only be group 4).
+	 */
+	private void takeRepetition(int next)
+	{
+		if (!fixedPunct && isPunct(buf[next - 1]))
+		{
+			punct = buf[next - 1];
+		}
+		pos = next;
+		emitted = next;
+		removed++;
+	}
+
+	private static final int NO_MATCH = -1;
+	private static final int NEED_INPUT = -2;
+
+	/*
+	 * Helper method that checks whether whitespace, the word and optional punctuation follow at index from. Returns the end of that
+	 * repetition, NO_MATCH, or NEED_INPUT if that cannot be told from the input written so far.
+	 */
+	private int repetitionEnd(char[] word, int wordStart, int length, int from)
+	{
+		int w = from;
+		while (w < count && isSpace(buf[w]))
+		{
+			w++;
+		}
+		if (w == count && !eof)
+		{
+			return NEED_INPUT;
+		}
+		if (w == from)
+		{
+			return NO_MATCH;
+		}
+		int available = Math.min(length, count - w);
+		for (int k = 0; k < available; k++)
+		{
+			char c1 = word[wordStart + k];
+			char c2 = buf[w + k];
+			if (c1 != c2 && toLowerAscii(c1) != toLowerAscii(c2))
+			{
+				return NO_MATCH;
+			}
+		}
+		if (available < length)
+		{
+			return eof ? NO_MATCH : NEED_INPUT;
+		}
+		int end = w + length;
+		if (end == count)
+		{
+			return eof ? end : NEED_INPUT;
+		}
+		return isPunct(buf[end]) ? end + 1 : end;
+	}
+
+	/*
+	 * Helper method that works out where group 1 ends for any candidate starting in the token that ends at end, or returns -1 if no
+	 * match can start in the token (a match needs whitespace after it, and group 1 must end at a word boundary).
+	 */
+	private int groupEnd(int end)
+	{
+		if (end >= count)
+		{
+			return -1;
+		}
+		if (wordBefore(end))
+		{
+			return end;
+		}
+		if (isPunct(buf[end - 1]) && wordBefore(end - 1))
+		{
+			return end - 1;
+		}
+		return -1;
+	}
+
+	private void emit(int from, int to) throws IOException
+	{
+		if (from >= to)
+		{
+			return;
+		}
+		if (out instanceof StringBuilder)
+		{
+			((StringBuilder) out).append(buf, from, to - from);
+		}
+		else if (out instanceof Writer)
+		{
+			((Writer) out).write(buf, from, to - from);
+		}
+		else
+		{
+			for (int k = from; k < to; k++)
+			{
+				out.append(buf[k]);
+			}
+		}
+	}
+
+	// The [!,.;?] punctuation class that may follow a word or its duplicates
+	static boolean isPunct(char c)
+	{
+		return c == '!' || c == ',' || c == '.' || c == ';' || c == '?';
+	}
+
+	// The \s whitespace class ([ \t\n\x0B\f\r], since the pattern does not use UNICODE_CHARACTER_CLASS)
+	static boolean isSpace(char c)
+	{
+		return c == ' ' || (c >= '\t' && c <= '\r');
+	}
+
+	static char toLowerAscii(char c)
+	{
+		return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	// Word characters as \b sees them: letters, digits and the underscore
+	static boolean isWord(int codePoint)
+	{
+		if (codePoint < 0x80)
+		{
+			return (codePoint >= 'a' && codePoint <= 'z') || (codePoint >= 'A' && codePoint <= 'Z')
+					|| (codePoint >= '0' && codePoint <= '9') || codePoint == '_';
+		}
+		return Character.isLetterOrDigit(codePoint);
+	}
+
+	static boolean isNonSpacingMark(int codePoint)
+	{
+		return codePoint >= 0x300 && Character.getType(codePoint) == Character.NON_SPACING_MARK;
+	}
+
+	/*
+	 * Helper methods that tell whether the character before / at index i counts as a word character for \b. Non spacing marks
+	 * count when they are attached to a letter or digit, which is how java.util.regex treats combining accents.
+	 */
+	private boolean wordBefore(int i)
+	{
+		if (i <= 0)
+		{
+			return leftWord;
+		}
+		int codePoint = Character.codePointBefore(buf, i);
+		return isWord(codePoint) || (isNonSpacingMark(codePoint) && hasBaseCharacter(i - 1));
+	}
+
+	private boolean wordAt(int i)
+	{
+		if (i >= count)
+		{
+			return false;
+		}
+		int codePoint = Character.codePointAt(buf, i, count);
+		return isWord(codePoint) || (isNonSpacingMark(codePoint) && hasBaseCharacter(i));
+	}
+
+	private boolean hasBaseCharacter(int i)
+	{
+		for (int x = i; x >= 0; x--)
+		{
+			int codePoint = Character.codePointAt(buf, x, count);
+			if (Character.isLetterOrDigit(codePoint))
+			{
+				return true;
+			}
+			if (!isNonSpacingMark(codePoint))
+			{
+				return false;
+			}
+		}
+		return leftBase;
+	}
+}
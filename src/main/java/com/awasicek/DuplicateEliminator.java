@@ -0,0 +1,144 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/*
+ * Duplicate elimination for programs that embed it, without any of the file handling around it. One instance holds a DupScanner,
+ * a ByteDupScanner and a read buffer and reuses them for every call, so once the buffers have grown to the longest token seen a
+ * call allocates nothing (apart from what the output itself does, e.g. a StringBuilder that has to grow). An instance is meant to
+ * be confined to one thread: keep one per worker thread (FileUtil keeps one in a ThreadLocal), not one per call.
+ *
+ * Every variant gives exactly what FileUtil.regexElimDups gives for the same text. The ByteBuffer variant works on UTF-8 bytes.
+ */
+public final class DuplicateEliminator {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final DupScanner chars = new DupScanner(null);
+	private final ByteDupScanner bytes = new ByteDupScanner(null);
+	private final ByteBufferOutput byteOutput = new ByteBufferOutput();
+	private final char[] chunk = new char[CHUNK_SIZE];
+	private long removed;
+
+	/*
+	 * Eliminates duplicates from text and appends the result to out. Returns true if anything was eliminated (out gets the text as
+	 * it is otherwise). Only throws what appending to out throws.
+	 */
+	public boolean eliminate(CharSequence text, Appendable out) throws IOException
+	{
+		DupScanner scanner = scanner(out);
+		scanner.write(text, 0, text.length());
+		return finish(scanner);
+	}
+
+	// Eliminates duplicates from everything in reads up to its end and writes the result to out (neither is closed)
+	public boolean eliminate(Reader in, Writer out) throws IOException
+	{
+		DupScanner scanner = scanner(out);
+		int n;
+		while ((n = in.read(chunk)) != -1)
+		{
+			scanner.write(chunk, 0, n);
+		}
+		return finish(scanner);
+	}
+
+	/*
+	 * Eliminates duplicates from the UTF-8 text between the position and the limit of in and puts the result into out, leaving in at
+	 * its limit and out after the last byte put. The result is never longer than the input, so out cannot overflow if it has at
+	 * least in.remaining() bytes left; if it has fewer it can throw BufferOverflowException part way through.
+	 */
+	public boolean eliminate(ByteBuffer in, ByteBuffer out)
+	{
+		byteOutput.target = out;
+		try
+		{
+			ByteDupScanner scanner = scanner(byteOutput);
+			scanner.write(in);
+			boolean changed = scanner.finish();
+			removed = scanner.duplicatesRemoved();
+			return changed;
+		}
+		catch (IOException e)
+		{
+			// a ByteBuffer does not throw
+			throw new UncheckedIOException(e);
+		}
+		finally
+		{
+			byteOutput.target = null;
+		}
+	}
+
+	// Number of duplicate words dropped by the last call
+	public long duplicatesRemoved()
+	{
+		return removed;
+	}
+
+	/*
+	 * Returns the char scanner of this instance, reset for a new input going to out, for callers that push the text in themselves
+	 * (e.g. to time reading apart from scanning). It is only valid until the next call on this instance.
+	 */
+	public DupScanner scanner(Appendable out)
+	{
+		chars.reset(out);
+		return chars;
+	}
+
+	// The same for the UTF-8 byte scanner of this instance
+	public ByteDupScanner scanner(OutputStream out)
+	{
+		bytes.reset(out);
+		return bytes;
+	}
+
+	private boolean finish(DupScanner scanner) throws IOException
+	{
+		boolean changed = scanner.finish();
+		removed = scanner.duplicatesRemoved();
+		return changed;
+	}
+
+	// Output stream that puts what the byte scanner writes into the ByteBuffer of the current call
+	private static final class ByteBufferOutput extends OutputStream {
+
+		private ByteBuffer target;
+
+		@Override
+		public void write(int b)
+		{
+			target.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			target.put(b, off, len);
+		}
+	}
+}
@@ -19,45 +19,296 @@
  */
 package com.awasicek;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class ElimDups {
-	static String pathStr = "";
+	private final RunOptions options;
+	// Counted down when a run is completely finished, so that a shutdown hook can wait for a stopped watch to be wrapped up
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	private ElimDups(RunOptions options)
+	{
+		this.options = options;
+	}
 
 	public static void main(String[] args) 
 	{
-		// Get user input on whether they want to start the program
-		InfoUtil.bootReady();
-		// Thrilling cutting edge introduction 
-		InfoUtil.startingInfo(InfoUtil.useGraphics);
-		// Verify the command line argument (and exit with error message if non-conforming)
-		VerificationUtil.checkCLArguments(args);
-		pathStr = args[0];
-		new ElimDups().start();
+		System.exit(run(args));
+	}
+
+	/*
+	 * Runs the program for the given command line arguments and returns the exit status (see RunOptions). An interactive run asks the
+	 * user before it starts and shows its effects before and after the files are processed, never while they are.
+	 */
+	public static int run(String[] args)
+	{
+		RunOptions options;
+		try
+		{
+			options = RunOptions.parse(args);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			System.err.println(RunOptions.USAGE);
+			return RunOptions.EXIT_USAGE;
+		}
+		if (options.help)
+		{
+			System.out.println(RunOptions.USAGE);
+			return RunOptions.EXIT_OK;
+		}
+		applyOptions(options);
+		if (options.worker > 0)
+		{
+			// A worker of a sharded run, started by a Coordinator with the same command line (which it has checked already)
+			return ShardWorker.run(options);
+		}
+		// Verify the command line arguments (and exit with an error message if one is non-conforming)
+		for (Path root : options.roots)
+		{
+			String error = VerificationUtil.checkArgument(root.toString());
+			if (error == null && options.watch && !VerificationUtil.isDirectory(root))
+			{
+				error = "Error: --watch needs directories to watch, " + root + " is a file.";
+			}
+			if (error != null)
+			{
+				System.err.println(error);
+				return RunOptions.EXIT_USAGE;
+			}
+		}
+		InfoUtil.useGraphics = options.interactive;
+		if (options.interactive)
+		{
+			// Get user input on whether they want to start the program
+			if (!InfoUtil.bootReady())
+			{
+				return RunOptions.EXIT_OK;
+			}
+			// Thrilling cutting edge introduction 
+			InfoUtil.startingInfo(InfoUtil.useGraphics);
+		}
+		return new ElimDups(options).start();
+	}
+
+	// Helper method that sets the options of FileUtil from the command line, for a run as well as for a worker of a sharded run
+	private static void applyOptions(RunOptions options)
+	{
+		FileUtil.extensions = options.extensions;
+		FileUtil.includeGlobs = options.includes;
+		FileUtil.excludeGlobs = options.excludes;
+		FileUtil.threads = options.threads;
+		FileUtil.charset = options.charset;
+		FileUtil.memoryBudget = options.memory;
+		FileUtil.resultCacheBytes = options.cache;
+		FileUtil.inPlace = options.inPlace;
+		FileUtil.audit = options.audit;
+		FileUtil.auditCounts = options.auditCounts;
+		FileUtil.gzip = options.gzip;
+		FileUtil.gzipLevel = options.gzipLevel;
 	}
 
 	// Runner method
-	private void start() 
+	private int start() 
 	{
-		// If the command line argument is a .txt file (read, write, and .txt extension tested in main method), eliminate duplicates
-		if (VerificationUtil.isFile(pathStr)) {
-			Path p = Paths.get(pathStr);
-			FileUtil.elimDups(p);
+		if (options.filter)
+		{
+			return filter();
+		}
+		// Load the manifest of files that earlier runs left clean, if one was asked for (--manifest)
+		FileUtil.manifest = loadManifest(options.manifest);
+		// Start timing the run, and streaming the per-file report if one was asked for (--report)
+		RunMetrics.reset();
+		openReport(options.report);
+		boolean directoryRun = false;
+		boolean watchFailed = false;
+		if (options.watch)
+		{
+			// Keep processing files in the directories as they are written until the program is stopped
+			watchFailed = !watch();
+			directoryRun = true;
+		}
+		List<Path> sharded = new ArrayList<Path>();
+		for (Path root : options.watch ? Collections.<Path>emptyList() : options.roots)
+		{
+			// If the argument is a file (read, write, and extension tested in run method), eliminate duplicates
+			if (VerificationUtil.isFile(root.toString()))
+			{
+				FileUtil.elimDupsIsolated(root);
+			}
+			// With --processes the directories are split into shards for worker JVMs, which send their figures back
+			else if (options.processes > 1)
+			{
+				sharded.add(root);
+				directoryRun = true;
+			}
+			// If the argument is a directory, walk through the directory tree and eliminate duplicates from text files that are
+			// readable and writable
+			else
+			{
+				FileUtil.searchDirsAndDestroyDups(root);
+				directoryRun = true;
+			}
 		}
-		// If the command line argument is a directory, search it
-		else if (VerificationUtil.isDirectory(pathStr)) 
+		if (!sharded.isEmpty())
 		{
-			Path startingDir = Paths.get(pathStr);
-			// Walk through the directory tree and eliminate duplicates from text files that are readable and writable
-			FileUtil.searchDirsAndDestroyDups(startingDir);		
+			new Coordinator(options).run(sharded);
 		}
+		// Save the manifest for the next run (a directory run drops the entries of files it no longer found)
+		saveManifest(directoryRun);
+		// Finish the report and write the metrics summary if one was asked for (--metrics)
+		RunMetrics.finish(options.metrics);
+		// Display exciting special effects to ensure maximum user engagement (now that the work is done)
+		InfoUtil.elimInfo(InfoUtil.useGraphics);
 		
 		/*
 		 * Give the user information about the file(s) that had duplicates destroyed, and if only empty directories were found
 		 * then give the user an appropriate message and all of the empty directories searched.
 		 */
-		InfoUtil.endReport();
-		System.out.println("Exiting program.");
+		if (!options.quiet)
+		{
+			InfoUtil.endReport();
+			System.out.println("Exiting program.");
+		}
+		finished.countDown();
+		return RunMetrics.failedCount() > 0 || watchFailed ? RunOptions.EXIT_FAILED_FILES : RunOptions.EXIT_OK;
+	}
+
+	/*
+	 * Helper method that filters standard input to standard output. Nothing else is written to standard output, which carries the
+	 * text, and a failure (e.g. the reader at the other end of the pipe going away) is reported on standard error.
+	 */
+	private int filter()
+	{
+		RunMetrics.reset();
+		openReport(options.report);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+		boolean failed = false;
+		try
+		{
+			FileUtil.filter(System.in, out);
+		}
+		catch (IOException e)
+		{
+			RunMetrics.fileFailed(Paths.get("-"), e);
+			System.err.println("Failed to filter standard input. " + e);
+			failed = true;
+		}
+		RunMetrics.finish(options.metrics);
+		finished.countDown();
+		return failed ? RunOptions.EXIT_FAILED_FILES : RunOptions.EXIT_OK;
+	}
+
+	/*
+	 * Helper method that runs a watch daemon over the directories until the program is stopped (Ctrl-C or a kill), and then returns
+	 * so that start() can save the manifest and report as usual, with the shutdown hook waiting for that. Returns false if watching
+	 * failed.
+	 */
+	private boolean watch()
+	{
+		WatchDaemon daemon;
+		try
+		{
+			daemon = new WatchDaemon(options.roots, options.debounce, options.threads);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to start watching. " + e);
+			return false;
+		}
+		Thread hook = new Thread(() -> {
+			daemon.stop();
+			try
+			{
+				finished.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(hook);
+		FlightEvents.listen();
+		try
+		{
+			daemon.run();
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to watch directories. " + e);
+			return false;
+		}
+		finally
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(hook);
+			}
+			catch (IllegalStateException e)
+			{
+				// already shutting down, the hook is waiting for this run to finish
+			}
+		}
+	}
+
+	// Helper method that loads the manifest named on the command line (a manifest that cannot be read means every file is processed)
+	private static Manifest loadManifest(Path file)
+	{
+		if (file == null)
+		{
+			return null;
+		}
+		try
+		{
+			return Manifest.load(file);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to load manifest, processing all files. " + e);
+			return null;
+		}
+	}
+
+	private static void saveManifest(boolean pruneUnseen)
+	{
+		if (FileUtil.manifest != null)
+		{
+			try
+			{
+				FileUtil.manifest.save(pruneUnseen);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Failed to save manifest. " + e);
+			}
+		}
+	}
+
+	// Helper method that opens the per-file report (the run goes ahead without one if it cannot be opened)
+	private static void openReport(Path file)
+	{
+		if (file != null)
+		{
+			try
+			{
+				RunMetrics.openReport(file);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Failed to open report file. " + e);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
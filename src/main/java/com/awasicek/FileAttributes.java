@@ -0,0 +1,169 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/*
+ * The basic attributes of a file together with its number of (hard) links, read with one stat through the unix attribute view,
+ * so that where the attributes of a file have to be read anyway (a single file, the watch daemon, a symbolic link a walk comes
+ * across) the link count processing may need (see FileUtil.linkedFiles and FileUtil.commit) costs no stat of its own. The
+ * attributes of a walk come without it, and it is then read by links only if it is needed. Where there is no unix view
+ * (Windows) the basic attributes are read as usual and every file counts as having one link.
+ */
+final class FileAttributes implements BasicFileAttributes {
+
+	private static final String UNIX_ATTRIBUTES =
+			"unix:size,lastModifiedTime,lastAccessTime,creationTime,isRegularFile,isDirectory,isSymbolicLink,isOther,fileKey,nlink";
+	// Whether the file system has the unix view, until it turns out not to
+	private static volatile boolean unix = true;
+
+	private final long size;
+	private final FileTime lastModifiedTime;
+	private final FileTime lastAccessTime;
+	private final FileTime creationTime;
+	private final boolean regularFile;
+	private final boolean directory;
+	private final boolean symbolicLink;
+	private final boolean other;
+	private final Object fileKey;
+	private final int links;
+
+	private FileAttributes(Map<String, Object> map)
+	{
+		this.size = (Long) map.get("size");
+		this.lastModifiedTime = (FileTime) map.get("lastModifiedTime");
+		this.lastAccessTime = (FileTime) map.get("lastAccessTime");
+		this.creationTime = (FileTime) map.get("creationTime");
+		this.regularFile = (Boolean) map.get("isRegularFile");
+		this.directory = (Boolean) map.get("isDirectory");
+		this.symbolicLink = (Boolean) map.get("isSymbolicLink");
+		this.other = (Boolean) map.get("isOther");
+		this.fileKey = map.get("fileKey");
+		this.links = (Integer) map.get("nlink");
+	}
+
+	// Utility method that reads the attributes of a file (following a symbolic link) with its link count where it can
+	static BasicFileAttributes read(Path path) throws IOException
+	{
+		if (unix)
+		{
+			try
+			{
+				return new FileAttributes(Files.readAttributes(path, UNIX_ATTRIBUTES));
+			}
+			catch (UnsupportedOperationException | IllegalArgumentException e)
+			{
+				unix = false;
+			}
+		}
+		return Files.readAttributes(path, BasicFileAttributes.class);
+	}
+
+	/*
+	 * Utility method that returns the number of links to a file whose attributes are at hand (null if they are not), reading it only
+	 * if they were not read by read(), and 1 where the file system cannot tell
+	 */
+	static int links(Path path, BasicFileAttributes attrs)
+	{
+		int links = linksRead(attrs);
+		if (links > 0)
+		{
+			return links;
+		}
+		if (!unix)
+		{
+			return 1;
+		}
+		try
+		{
+			return (Integer) Files.getAttribute(path, "unix:nlink");
+		}
+		catch (IOException | UnsupportedOperationException | IllegalArgumentException e)
+		{
+			return 1;
+		}
+	}
+
+	// Utility method that returns the link count that came with attributes read by read(), 0 if they came without one
+	static int linksRead(BasicFileAttributes attrs)
+	{
+		return attrs instanceof FileAttributes ? ((FileAttributes) attrs).links : 0;
+	}
+
+	@Override
+	public FileTime lastModifiedTime()
+	{
+		return lastModifiedTime;
+	}
+
+	@Override
+	public FileTime lastAccessTime()
+	{
+		return lastAccessTime;
+	}
+
+	@Override
+	public FileTime creationTime()
+	{
+		return creationTime;
+	}
+
+	@Override
+	public boolean isRegularFile()
+	{
+		return regularFile;
+	}
+
+	@Override
+	public boolean isDirectory()
+	{
+		return directory;
+	}
+
+	@Override
+	public boolean isSymbolicLink()
+	{
+		return symbolicLink;
+	}
+
+	@Override
+	public boolean isOther()
+	{
+		return other;
+	}
+
+	@Override
+	public long size()
+	{
+		return size;
+	}
+
+	@Override
+	public Object fileKey()
+	{
+		return fileKey;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Decides which files below a starting directory are processed, going by FileUtil.extensions (and FileUtil.gzip),
+ * FileUtil.includeGlobs and FileUtil.excludeGlobs as they were when it was created. The globs are matched against the path
+ * relative to the starting directory, and a glob without a '/' against the file or directory name alone. Selection only looks at
+ * the path, never at the file itself; whether a selected file can be processed (canProcess) goes by FileUtil.audit as it was.
+ */
+public final class FileSelector {
+
+	private final Path root;
+	private final Set<String> extensions;
+	private final boolean compressed;
+	private final List<PathMatcher> includes;
+	private final List<PathMatcher> excludes;
+	// Whether files only need to be readable (for an audit)
+	private final boolean readOnly;
+
+	public FileSelector(Path root)
+	{
+		this.root = root;
+		this.extensions = FileUtil.extensions;
+		this.compressed = FileUtil.gzip;
+		this.includes = globMatchers(FileUtil.includeGlobs);
+		this.excludes = globMatchers(FileUtil.excludeGlobs);
+		this.readOnly = FileUtil.audit;
+	}
+
+	public Path root()
+	{
+		return root;
+	}
+
+	/*
+	 * Returns true if a file below the starting directory is to be processed: it has one of the extensions, neither it nor a
+	 * directory above it is excluded, and it is included (when there are include globs).
+	 */
+	public boolean accepts(Path file)
+	{
+		Path name = file.getFileName();
+		if (name == null || !VerificationUtil.hasExtension(name.toString(), extensions, compressed) || isExcluded(file))
+		{
+			return false;
+		}
+		if (includes.isEmpty())
+		{
+			return true;
+		}
+		Path relative = root.relativize(file);
+		for (PathMatcher include : includes)
+		{
+			if (include.matches(relative))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The same as accepts for a file whose directories are known not to be excluded, as they are during a walk that does not enter
+	 * excluded directories: only the file itself is matched against the exclude globs.
+	 */
+	public boolean acceptsName(Path file)
+	{
+		Path name = file.getFileName();
+		if (name == null || !VerificationUtil.hasExtension(name.toString(), extensions, compressed))
+		{
+			return false;
+		}
+		if (includes.isEmpty() && excludes.isEmpty())
+		{
+			return true;
+		}
+		Path relative = root.relativize(file);
+		for (PathMatcher exclude : excludes)
+		{
+			if (exclude.matches(relative))
+			{
+				return false;
+			}
+		}
+		if (includes.isEmpty())
+		{
+			return true;
+		}
+		for (PathMatcher include : includes)
+		{
+			if (include.matches(relative))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Returns true if a selected file can be processed: it can be read, and written unless this is an audit
+	public boolean canProcess(Path file)
+	{
+		return VerificationUtil.canProcess(file, readOnly);
+	}
+
+	// Returns true if a file or directory, or a directory between it and the starting directory, matches an exclude glob
+	public boolean isExcluded(Path path)
+	{
+		if (excludes.isEmpty())
+		{
+			return false;
+		}
+		Path relative = root.relativize(path);
+		for (int k = 1; k <= relative.getNameCount(); k++)
+		{
+			Path prefix = relative.subpath(0, k);
+			for (PathMatcher exclude : excludes)
+			{
+				if (exclude.matches(prefix))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Helper method that compiles globs, a glob without a '/' only looks at the last element of a path
+	private static List<PathMatcher> globMatchers(List<String> globs)
+	{
+		List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+		for (String glob : globs)
+		{
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+			matchers.add(glob.indexOf('/') < 0 ? p -> matcher.matches(p.getFileName()) : matcher);
+		}
+		return matchers;
+	}
+}
@@ -19,18 +19,54 @@
  */
 package com.awasicek;
 
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public final class FileUtil {
 
@@ -38,9 +74,22 @@ public final class FileUtil {
 	{
 	}
 	
-	// Lists that will store the paths of directories or files that the program encounters for information display purposes upon program end.
-	public static List<Path> filesList = new ArrayList<Path>();
-	public static List<Path> dirList = new ArrayList<Path>();
+	// Number of files searchDirsAndDestroyDups works on at the same time (1 processes them one after another on the calling thread)
+	public static int threads = Integer.getInteger("elimdups.threads", 1);
+	// Extensions (without the dot) of the files searchDirsAndDestroyDups processes
+	public static Set<String> extensions = Collections.singleton("txt");
+	/*
+	 * Globs for the paths below the starting directory of searchDirsAndDestroyDups. With includeGlobs a file is only processed if its
+	 * path matches one of them, and a file is skipped if its path or the path of a directory above it matches one of excludeGlobs. A
+	 * glob without a '/' is matched against the file or directory name alone.
+	 */
+	public static List<String> includeGlobs = Collections.emptyList();
+	public static List<String> excludeGlobs = Collections.emptyList();
+	/*
+	 * Encoding of the files (UTF-8 unless -Delimdups.charset or --charset says otherwise). It used to be the platform default, which
+	 * made the bytes written depend on the locale of the host. UTF-8 files are scanned as bytes by ByteDupScanner and never decoded.
+	 */
+	public static Charset charset = charsetProperty("elimdups.charset");
 
 	
 	// Utility method that reads the contents of a text file and returns it as a string
@@ -62,7 +111,8 @@ public final class FileUtil {
 			 * across the amount read in (either a buffered amount or each line).  If size is an issue this can be refactored to read into
 			 * a buffer, eliminate duplicates from the buffer, write the buffer to a temporary target file, repeat until the entire
 			 * input file has been transferred via buffer to a temporary file and then write the contents of the temporary file to the
-			 * input file itself (but this poses non-trivial issues for detecting duplicates that span across buffers).
+			 * input file itself (but this poses non-trivial issues for detecting duplicates that span across buffers). That is what
+			 * elimDupsStreaming does for files over streamingThreshold, with DupScanner carrying the undecided text across buffers.
 			 */
 			storage = Files.readAllBytes(pathName); 
 		} 
@@ -76,17 +126,20 @@ public final class FileUtil {
 		 * 32-bit system that still gives 2gb to work with (max heap size divided by 2 since each char is 2 bytes).  If the program must deal 
 		 * with colossal text files, this can be refactored as mentioned above to use buffering.
 		 */
-		String bigString = new String(storage); // store the bytes read from the input file into a string
+		String bigString = new String(storage, charset); // store the bytes read from the input file into a string
 		return bigString;
 	}
 	
-	// Utility method that writes a string to an output file
+	/*
+	 * Utility method that writes a string to an output file. The text goes to a temporary file next to the output file, which is
+	 * forced to disk and then renamed over the output file in one step, so a crash part way through leaves either the old or the
+	 * new content but never a truncated file.
+	 */
 	public static void writeTextFile(String parsedText, Path outputFile)
 	{
-		// Note: used try with resources so no finally block is required to close the file because the decorators implement AutoCloseable
-		try (PrintWriter out = new PrintWriter(new FileWriter(outputFile.toFile().getAbsolutePath()))) 
+		try
 		{
-				out.print(parsedText);
+			replaceTextFile(parsedText, outputFile, 0, null);
 		}
 		catch (IOException e)
 		{
@@ -94,6 +147,149 @@ public final class FileUtil {
 		}
 
 	}
+
+	/*
+	 * Helper method behind writeTextFile that lets the caller see a failure (the output file is untouched when it fails). Returns the
+	 * number of bytes written. links is the number of links to the output file (see commit), and the bytes written also go to hash
+	 * unless it is null.
+	 */
+	private static long replaceTextFile(String parsedText, Path outputFile, int links, Manifest.ContentHash hash) throws IOException
+	{
+		Path temp = createSiblingTemp(outputFile);
+		long written;
+		try
+		{
+			// Note: used try with resources so no finally block is required to close the file because the decorators implement AutoCloseable
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+					Writer out = new OutputStreamWriter(hashing(Channels.newOutputStream(channel), hash), charset))
+			{
+				out.write(parsedText);
+				out.flush();
+				written = channel.position();
+				forceIfSyncing(channel);
+			}
+			commit(temp, outputFile, links);
+			return written;
+		}
+		catch (IOException e)
+		{
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	// Helper method that does the same as replaceTextFile for text that is already encoded, written out of the stream's own buffer
+	private static long replaceBytes(ByteArrayOutputStream content, Path outputFile, int links, Manifest.ContentHash hash)
+			throws IOException
+	{
+		Path temp = createSiblingTemp(outputFile);
+		try
+		{
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+			{
+				content.writeTo(hashing(Channels.newOutputStream(channel), hash));
+				forceIfSyncing(channel);
+			}
+			commit(temp, outputFile, links);
+			return content.size();
+		}
+		catch (IOException e)
+		{
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	// Helper method that does the same as replaceTextFile for text that is already encoded
+	private static long replaceBytes(byte[] content, Path outputFile, int links, Manifest.ContentHash hash) throws IOException
+	{
+		return replaceBytes(ByteBuffer.wrap(content), outputFile, links, hash);
+	}
+
+	// The same for the text between the position and the limit of a buffer
+	private static long replaceBytes(ByteBuffer content, Path outputFile, int links, Manifest.ContentHash hash) throws IOException
+	{
+		Path temp = createSiblingTemp(outputFile);
+		try
+		{
+			long written = content.remaining();
+			if (hash != null)
+			{
+				hash.update(content);
+			}
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+			{
+				while (content.hasRemaining())
+				{
+					channel.write(content);
+				}
+				forceIfSyncing(channel);
+			}
+			commit(temp, outputFile, links);
+			return written;
+		}
+		catch (IOException e)
+		{
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/*
+	 * Helper method that turns a file holding original into one holding text by writing over it from the first byte where the two
+	 * differ and cutting it off after text, for inPlace. Returns the number of bytes the file now has. The content the file is
+	 * left with goes to hash unless it is null.
+	 */
+	private static long replaceTail(byte[] original, byte[] text, Path outputFile, Manifest.ContentHash hash) throws IOException
+	{
+		if (hash != null)
+		{
+			hash.update(text, 0, text.length);
+		}
+		int from = Arrays.mismatch(original, text);
+		try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.WRITE))
+		{
+			if (from >= 0)
+			{
+				ByteBuffer tail = ByteBuffer.wrap(text, from, text.length - from);
+				for (long position = from; tail.hasRemaining();)
+				{
+					position += channel.write(tail, position);
+				}
+				channel.truncate(text.length);
+				forceIfSyncing(channel);
+			}
+		}
+		if (from >= 0)
+		{
+			tellReplacing(outputFile, outputFile);
+		}
+		return text.length;
+	}
+
+	// Helper method that reads a charset from a system property, or returns UTF-8 if it is not set or not a charset this JVM knows
+	private static Charset charsetProperty(String name)
+	{
+		String value = System.getProperty(name);
+		if (value != null)
+		{
+			try
+			{
+				return Charset.forName(value);
+			}
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Unknown charset " + value + ", using UTF-8. " + e);
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	// Helper method that tells whether files are scanned as bytes by ByteDupScanner (UTF-8 without the regex engine)
+	private static boolean scansBytes()
+	{
+		return !useRegexEngine && StandardCharsets.UTF_8.equals(charset);
+	}
 	
 	/*
 	 * Regex Description: (1) (?i) case insensitive, (2) \b asserts position at word boundary, (3) (\S+) is the first capturing group 
@@ -107,85 +303,1898 @@ public final class FileUtil {
 	/*
 	 *  Compile the regex pattern here so that this only needs to be done once, not each time a file has its duplicates eliminated,
 	 *  and so that we avoid passing the regex string into a replaceAll method call on the string being examined (which would require
-	 *  the same sort of recompilation of the pattern).
+	 *  the same sort of recompilation of the pattern). It is compiled when the holder class is first used, i.e. by the first call
+	 *  of regexElimDups, so that runs with the scanners (the default) do not pay for it at startup.
 	 */
-	private static final Pattern NO_DUPS_PATTERN = Pattern.compile(regExNoDups);
+	private static final class NoDupsPattern {
+		static final Pattern NO_DUPS_PATTERN = Pattern.compile(regExNoDups);
+	}
+
+	// Set to true to eliminate duplicates with the regex replacement loop (the reference behavior) instead of the single pass DupScanner
+	public static boolean useRegexEngine = false;
 
 	/*
 	 * Utility method that eliminates duplicate words from a file (e.g., "This is an example example duplicate." becomes 
-	 * "This is an example duplicate.")
+	 * "This is an example duplicate."). Returns true if duplicates were found and the file was rewritten, a file without any
+	 * duplicates is left alone (not even its modification time changes). The time taken and the bytes and duplicates involved are
+	 * added to RunMetrics. With audit the file is only read, never written, and true means that it has duplicates.
 	 */
-	public static void elimDups(Path path)
+	public static boolean elimDups(Path path)
+	{
+		return elimDups(path, attributes(path));
+	}
+
+	// The same with the attributes of the file already at hand (e.g. from a walk), which saves reading them again
+	static boolean elimDups(Path path, BasicFileAttributes attrs)
 	{				
-		// Read the text file and store it in a string
-		String fileText = FileUtil.readTextFile(path);
-		Matcher m = NO_DUPS_PATTERN.matcher(fileText); // create a matcher that will match the file against the pattern
-		while (m.find()) // as long a match is found, keep looping
+		RunMetrics.FileStats stats = new RunMetrics.FileStats(path);
+		Manifest known = manifest;
+		if (known != null && attrs != null && isKnownClean(known, path, attrs))
 		{
-			String group1 = m.group(1); // the first instance of the word
-			String group2 = m.group(2); // possible punctuation following first instance of the word
-			String group4 = m.group(4); // punctuation following later duplicate
-			String replacement = group1; // start building the replacement string
-			/*
-			 * Note we don't replace question marks because the first parameter of the replaceFirst method takes a regex
-			 * and m.group() returns a String. For example, "marks marks?" will only match "marks marks" not "marks marks?"
-			 * since ? needs to be escaped in a regex.  Note: with additional time, this should be refactored into a more robust
-			 * solution that does not require this type of escaping for certain situations.
-			 */
-			if (group2 != null && !group2.equals("?")) // if any punctuation follows the first instance of the word then ...
+			// Nothing changed since an earlier run left this file clean
+			RunMetrics.fileSkipped(stats);
+			return false;
+		}
+		/*
+		 * The link count is only read (if it did not come with the attributes) for the claim, once the manifest has had its say,
+		 * or else by commit when the file is replaced
+		 */
+		Predicate<Object> claim = linkedFiles;
+		if (claim != null && attrs != null && attrs.fileKey() != null)
+		{
+			stats.links = FileAttributes.links(path, attrs);
+			if (stats.links > 1 && !claim.test(attrs.fileKey()))
 			{
-				// add the punctuation to the string to be used as the replacement
-				replacement += group2;
-				
-			} 
-			else if (group4 != null && !group4.equals("?") && group2 == null) // if any punctuation follows a later duplicate but not the first word then...
+				// Already processed through another link to it during this run
+				RunMetrics.fileSkipped(stats);
+				return false;
+			}
+		}
+		else
+		{
+			stats.links = FileAttributes.linksRead(attrs);
+		}
+		long size = attrs == null ? 0 : attrs.size();
+		stats.bytesIn = size;
+		if (known != null)
+		{
+			// hashed as the file is read and written, for recordClean
+			stats.readHash = new Manifest.ContentHash();
+			stats.writtenHash = new Manifest.ContentHash();
+		}
+		/*
+		 * Scan straight out of a mapping of the file instead of copying it onto the heap first (but not while writing the file in
+		 * place, where some platforms refuse to shorten a file that is still mapped)
+		 */
+		boolean compressed = isCompressed(path);
+		boolean mapped = !compressed && !useRegexEngine && useMemoryMapping && !inPlace && size >= mappingThreshold;
+		/*
+		 * Stream files that are too big to hold in memory (or above the 2GB limit of readAllBytes) through a fixed size buffer
+		 * instead, and also files whose heap copies would take more than a worker's share of the memory budget
+		 */
+		boolean streamed = !compressed && !mapped && !useRegexEngine
+				&& (size > streamingThreshold || heapCost(size) > memoryBudget / threads);
+		// Wait for the heap this file needs to be free, rather than run out of it with the other workers
+		MemoryBudget heap = budget();
+		int taken = heap.acquire(audit || compressed || mapped || streamed ? STREAMING_COST : heapCost(size));
+		boolean changed;
+		try
+		{
+			if (audit)
 			{
-				// add the punctuation to the string to be used as the replacement
-				replacement += group4;
+				changed = FileUtil.auditFile(path, stats);
+			}
+			else if (compressed)
+			{
+				// Always streamed, whatever its size, and always scanned (the regex engine needs the whole text at once)
+				changed = FileUtil.rewriteCompressed(path, stats);
+			}
+			else if (mapped || streamed)
+			{
+				changed = FileUtil.rewriteThroughScanner(path, mapped, stats);
+			}
+			else if (scansBytes())
+			{
+				// Small enough to read at once, and scanned without being decoded
+				changed = FileUtil.rewriteBytes(path, stats);
+			}
+			else
+			{
+				changed = FileUtil.rewriteText(path, size, stats);
 			}
-			// When a duplicate is found the first instance of it (plus any punctuation) is used to replace the matching group
-			fileText = fileText.replaceFirst(m.group(), replacement); 
+		}
+		finally
+		{
+			heap.release(taken);
+		}
+		if (known != null && !(audit && changed))
+		{
+			// a file left as it was still has the attributes it was found with
+			recordClean(known, path, changed ? null : attrs, changed ? stats.writtenHash : stats.readHash);
+		}
+		// Count the file as processed
+		RunMetrics.fileDone(stats, changed);
+		return changed;
+	}
 
+	/*
+	 * Helper method that reads the attributes of a file, null if they cannot be read: then the size is taken to be 0 (which sends
+	 * the file down the heap path) and the manifest cannot vouch for the file
+	 */
+	private static BasicFileAttributes attributes(Path path)
+	{
+		try
+		{
+			return FileAttributes.read(path);
+		}
+		catch (IOException e)
+		{
+			return null;
 		}
-		// Write the processed string to the same file that the unprocessed string came from
-		FileUtil.writeTextFile(fileText, path);
-		// Add the file to the list of files that have been processed
-		filesList.add(path);
-		// Display exciting special effects to ensure maximum user engagement during processing
-		InfoUtil.elimInfo(InfoUtil.useGraphics);
 	}
-	
-	// Helper method that takes a path and adds it to the directory list for information display purposes
-	private static void parseDirs(Path path)
+
+	// Manifest of files found clean by earlier runs, which are skipped (null processes every file)
+	public static Manifest manifest = null;
+
+	/*
+	 * Bytes of heap the files being processed at the same time may take up together (-Delimdups.memoryBudget or --memory, half the
+	 * maximum heap by default). See MemoryBudget.
+	 */
+	public static long memoryBudget = Long.getLong("elimdups.memoryBudget", Runtime.getRuntime().maxMemory() / 2);
+	private static MemoryBudget budget = null;
+	private static long budgetBytes;
+
+	// Helper method that returns the budget, made afresh whenever memoryBudget has been changed
+	private static synchronized MemoryBudget budget()
 	{
-		if (VerificationUtil.isDirectory(path))
+		if (budget == null || budgetBytes != memoryBudget)
 		{
-			dirList.add(path);
+			budget = new MemoryBudget(memoryBudget);
+			budgetBytes = memoryBudget;
 		}
+		return budget;
 	}
-	
-	// Eliminates duplicate words from files in a given directory and its subdirectories
-	public static void searchDirsAndDestroyDups(Path startingDir)
+
+	/*
+	 * Bytes of results of files read at once that are kept by their content (-Delimdups.resultCache or --cache, 0 keeps none), so
+	 * that a copy of a file already seen in this run is not scanned again. This heap comes on top of memoryBudget. See ContentCache.
+	 */
+	public static long resultCacheBytes = Long.getLong("elimdups.resultCache", 0);
+	private static ContentCache resultCache = null;
+	private static long resultCacheFor;
+	private static Charset resultCacheCharset;
+
+	// Helper method that returns the result cache (null if there is none), made afresh whenever its size or the charset changed
+	static synchronized ContentCache resultCache()
 	{
-		// Using functional interfaces for use in processing a stream of paths and instantiate with lambda expressions
-	    Predicate<Path> isFilePredicate = p -> Files.isRegularFile(p); 
-	    Predicate<Path> isTxtFilePredicate = p -> VerificationUtil.isTxtFile(p.toUri().toString());
-	    Predicate<Path> canReadWritePredicate = p -> VerificationUtil.canReadAndWrite(p.toUri());
-	    Consumer<Path> elimDupsConsumer = p -> FileUtil.elimDups(p);		    		
-	    Consumer<Path> parseDirs = p -> FileUtil.parseDirs(p);
-		
-		try (Stream<Path> pathStream = Files.walk(startingDir))
+		if (resultCacheBytes <= 0)
 		{
-			/*
-			 * (1) Peek at the streams and put directory path names into a list for later info purposes, (2) then filter out paths that
-			 * are not files, (3) then filter out files that are not text files, (4) then filter out files that are not readable and
-			 * writable, and lastly (4) for each of the remaining files eliminate duplicates.
-			 */
-			pathStream.peek(parseDirs).filter(isFilePredicate).filter(isTxtFilePredicate).filter(canReadWritePredicate).forEach(elimDupsConsumer);
-		} 
-		catch (IOException e) 
+			resultCache = null;
+		}
+		else if (resultCache == null || resultCacheFor != resultCacheBytes || !charset.equals(resultCacheCharset))
+		{
+			resultCache = new ContentCache(resultCacheBytes);
+			resultCacheFor = resultCacheBytes;
+			resultCacheCharset = charset;
+		}
+		return resultCache;
+	}
+
+	/*
+	 * Bytes of direct buffers each worker thread keeps for reading, scanning and writing the UTF-8 files that are read at once
+	 * (-Delimdups.bufferPool, 0 keeps none and reads each file into a new array). Files above half of it, and files that the result
+	 * cache or inPlace need as an array, are read into a new array anyway. See BufferArena.
+	 */
+	public static long bufferPoolBytes = Long.getLong("elimdups.bufferPool", 4L * 1024 * 1024);
+	private static final ThreadLocal<BufferArena> ARENAS = new ThreadLocal<BufferArena>();
+
+	// Helper method that returns the arena of this thread (null if there is none), made afresh whenever bufferPoolBytes changed
+	private static BufferArena arena()
+	{
+		BufferArena arena = ARENAS.get();
+		if (bufferPoolBytes <= 0)
+		{
+			ARENAS.remove();
+			return null;
+		}
+		if (arena == null || arena.capacity() != bufferPoolBytes)
+		{
+			arena = new BufferArena(bufferPoolBytes);
+			ARENAS.set(arena);
+		}
+		return arena;
+	}
+
+	// Drops the big buffers of the arena of this thread that have been idle for a while (see BufferArena), for a worker out of work
+	static void releaseIdleBuffers()
+	{
+		BufferArena arena = ARENAS.get();
+		if (arena != null)
+		{
+			arena.releaseIdle(System.nanoTime());
+		}
+	}
+
+	/*
+	 * Helper method that gives a file the result the cache holds for its content, without scanning it: nothing to do if the content
+	 * is clean, otherwise the output is written like a scanned one would be. Returns true if the file was rewritten.
+	 */
+	private static boolean applyCached(ContentCache.Result result, byte[] original, Path path, RunMetrics.FileStats stats)
+			throws IOException
+	{
+		stats.duplicates = result.duplicates;
+		if (result.output == null)
+		{
+			return false;
+		}
+		long writeStart = System.nanoTime();
+		stats.bytesOut = inPlace ? replaceTail(original, result.output, path, stats.writtenHash)
+				: replaceBytes(result.output, path, stats.links, stats.writtenHash);
+		stats.writeNanos = System.nanoTime() - writeStart;
+		return true;
+	}
+
+	/*
+	 * Helper method that estimates the heap a file takes up when it is read at once: the bytes read and the bytes written for UTF-8,
+	 * and on top of that the decoded text and its copy without the duplicates (up to two bytes a char each) for other charsets.
+	 */
+	private static long heapCost(long size)
+	{
+		return scansBytes() ? 2 * size : 6 * size;
+	}
+
+	/*
+	 * Helper method that reads a file onto the heap as a string, eliminates the duplicates with the single pass scanner (or the regex
+	 * if the reference behavior was requested) and writes the result back if anything was eliminated.
+	 */
+	private static boolean rewriteText(Path path, long size, RunMetrics.FileStats stats)
+	{
+		long start = System.nanoTime();
+		/*
+		 * Read the text file and store it in a string (keeping the bytes too when they are to be compared with the result, looked
+		 * up in the result cache or hashed for the manifest)
+		 */
+		ContentCache cache = resultCache();
+		byte[] original = null;
+		String fileText;
+		if (inPlace || cache != null || stats.readHash != null)
+		{
+			try
+			{
+				original = Files.readAllBytes(path);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			hashRead(stats, original);
+			fileText = new String(original, charset);
+		}
+		else
+		{
+			fileText = FileUtil.readTextFile(path);
+		}
+		long scanStart = System.nanoTime();
+		stats.readNanos = scanStart - start;
+		stats.bytesOut = size;
+		ContentCache.Key key = cache == null ? null : ContentCache.key(original, original.length);
+		ContentCache.Result known = cache == null ? null : cache.get(key);
+		try
+		{
+			if (known != null)
+			{
+				stats.scanNanos = System.nanoTime() - scanStart;
+				return applyCached(known, original, path, stats);
+			}
+			String parsedText = useRegexEngine ? regexElimDups(fileText, stats) : scanText(fileText, stats);
+			long writeStart = System.nanoTime();
+			stats.scanNanos = writeStart - scanStart;
+			// Both engines hand back the very same string when there was nothing to eliminate
+			boolean changed = parsedText != fileText;
+			if (changed)
+			{
+				// Write the processed string to the same file that the unprocessed string came from
+				if (inPlace || cache != null)
+				{
+					byte[] output = parsedText.getBytes(charset);
+					stats.bytesOut = inPlace ? FileUtil.replaceTail(original, output, path, stats.writtenHash)
+							: FileUtil.replaceBytes(output, path, stats.links, stats.writtenHash);
+					if (cache != null && cache.holds(output.length))
+					{
+						cache.put(key, output, stats.duplicates);
+					}
+				}
+				else
+				{
+					stats.bytesOut = FileUtil.replaceTextFile(parsedText, path, stats.links, stats.writtenHash);
+				}
+				stats.writeNanos = System.nanoTime() - writeStart;
+			}
+			else if (cache != null)
+			{
+				cache.putClean(key);
+			}
+			return changed;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/*
+	 * The engine of each thread that processes files, so that its scanners and their buffers are reused from one file to the next
+	 * instead of being allocated again for each file.
+	 */
+	private static final ThreadLocal<DuplicateEliminator> ENGINES = ThreadLocal.withInitial(DuplicateEliminator::new);
+
+	// Helper method that runs text through the engine and counts the duplicates it drops (the same string back if there were none)
+	private static String scanText(String text, RunMetrics.FileStats stats)
+	{
+		StringBuilder out = new StringBuilder(text.length());
+		DuplicateEliminator engine = ENGINES.get();
+		try
+		{
+			boolean changed = engine.eliminate(text, out);
+			stats.duplicates = engine.duplicatesRemoved();
+			return changed ? out.toString() : text;
+		}
+		catch (IOException e)
+		{
+			// a StringBuilder does not throw
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/*
+	 * Helper method that reads a UTF-8 file into a buffer of the arena of this thread, runs its bytes through a ByteDupScanner into
+	 * another one and replaces the file with that if any duplicates were dropped, so that nothing the size of the file is allocated.
+	 * Files that cannot take this way (see bufferPoolBytes) are read onto the heap. Throws UncheckedIOException (leaving the file as
+	 * it was) if it could not be read or replaced.
+	 */
+	private static boolean rewriteBytes(Path path, RunMetrics.FileStats stats)
+	{
+		BufferArena arena = inPlace || resultCache() != null || stats.bytesIn > Integer.MAX_VALUE ? null : arena();
+		ByteBuffer in = arena == null ? null : arena.take((int) stats.bytesIn);
+		if (in == null)
+		{
+			return rewriteBytesOnHeap(path, stats);
+		}
+		ByteBuffer out = null;
+		try
+		{
+			long start = System.nanoTime();
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+			{
+				while (in.hasRemaining() && channel.read(in) >= 0)
+				{
+				}
+				if (!in.hasRemaining() && channel.position() < channel.size())
+				{
+					// it has grown since it was found
+					return rewriteBytesOnHeap(path, stats);
+				}
+			}
+			in.flip();
+			if (stats.readHash != null)
+			{
+				stats.readHash.update(in);
+			}
+			long scanStart = System.nanoTime();
+			stats.readNanos = scanStart - start;
+			stats.bytesIn = in.remaining();
+			stats.bytesOut = in.remaining();
+			// the output is never longer than the input
+			out = arena.take(in.remaining());
+			DuplicateEliminator engine = ENGINES.get();
+			boolean changed = engine.eliminate(in, out);
+			stats.duplicates = engine.duplicatesRemoved();
+			long writeStart = System.nanoTime();
+			stats.scanNanos = writeStart - scanStart;
+			if (changed)
+			{
+				out.flip();
+				stats.bytesOut = replaceBytes(out, path, stats.links, stats.writtenHash);
+				stats.writeNanos = System.nanoTime() - writeStart;
+			}
+			return changed;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		finally
+		{
+			arena.give(in);
+			if (out != null)
+			{
+				arena.give(out);
+			}
+		}
+	}
+
+	// Helper method that does the same as rewriteBytes on an array of the file's bytes, which the result cache and inPlace need
+	private static boolean rewriteBytesOnHeap(Path path, RunMetrics.FileStats stats)
+	{
+		try
+		{
+			long start = System.nanoTime();
+			byte[] text = Files.readAllBytes(path);
+			hashRead(stats, text);
+			long scanStart = System.nanoTime();
+			stats.readNanos = scanStart - start;
+			stats.bytesIn = text.length;
+			stats.bytesOut = text.length;
+			// A copy of content seen before gets the result it had then
+			ContentCache cache = resultCache();
+			ContentCache.Key key = cache == null ? null : ContentCache.key(text, text.length);
+			ContentCache.Result known = cache == null ? null : cache.get(key);
+			if (known != null)
+			{
+				stats.scanNanos = System.nanoTime() - scanStart;
+				return applyCached(known, text, path, stats);
+			}
+			if (inPlace)
+			{
+				try (InPlaceOutput out = new InPlaceOutput(path, stats.writtenHash))
+				{
+					ByteDupScanner scanner = out.scanner = ENGINES.get().scanner(out);
+					scanner.write(text, 0, text.length);
+					boolean changed = scanner.finish();
+					stats.duplicates = scanner.duplicatesRemoved();
+					long writeStart = System.nanoTime();
+					stats.scanNanos = writeStart - scanStart;
+					if (changed)
+					{
+						stats.bytesOut = out.finishFile();
+						stats.writeNanos = System.nanoTime() - writeStart;
+					}
+					else if (cache != null)
+					{
+						// (the output written in place is never at hand as a whole, so only clean content is remembered)
+						cache.putClean(key);
+					}
+					return changed;
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream(text.length);
+			ByteDupScanner scanner = ENGINES.get().scanner(out);
+			scanner.write(text, 0, text.length);
+			boolean changed = scanner.finish();
+			stats.duplicates = scanner.duplicatesRemoved();
+			long writeStart = System.nanoTime();
+			stats.scanNanos = writeStart - scanStart;
+			if (changed)
+			{
+				if (cache != null && cache.holds(out.size()))
+				{
+					byte[] output = out.toByteArray();
+					stats.bytesOut = replaceBytes(output, path, stats.links, stats.writtenHash);
+					cache.put(key, output, stats.duplicates);
+				}
+				else
+				{
+					stats.bytesOut = replaceBytes(out, path, stats.links, stats.writtenHash);
+				}
+				stats.writeNanos = System.nanoTime() - writeStart;
+			}
+			else if (cache != null)
+			{
+				cache.putClean(key);
+			}
+			return changed;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Helper method that asks the manifest whether a file can be skipped (a file it cannot tell about is processed)
+	private static boolean isKnownClean(Manifest known, Path path, BasicFileAttributes attrs)
+	{
+		try
+		{
+			return known.isClean(path, attrs);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * Helper method that records a processed file in the manifest with the hash of its content as processing left it, and its
+	 * attributes (read now if they are null). Failing to do so only means the file is looked at again next run.
+	 */
+	private static void recordClean(Manifest known, Path path, BasicFileAttributes attrs, Manifest.ContentHash hash)
+	{
+		try
+		{
+			known.recordClean(path, attrs != null ? attrs : FileAttributes.read(path), hash.value());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to update manifest for " + path + ". " + e);
+		}
+	}
+
+	// Files larger than this many bytes are streamed by elimDupsStreaming instead of being read into memory as a whole
+	public static long streamingThreshold = 64L * 1024 * 1024;
+	/*
+	 * Files of at least this many bytes are read through a memory mapping by elimDupsMapped when useMemoryMapping is on. Below it
+	 * setting up and tearing down the mapping costs more than reading the file onto the heap.
+	 */
+	public static long mappingThreshold = 1024L * 1024;
+	public static boolean useMemoryMapping = true;
+	// Size (in chars, or bytes for UTF-8) of the buffer that streamed files are read through
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	// Heap a streamed or mapped file takes up: the read and write buffers and the scanner window, give or take a long token
+	private static final long STREAMING_COST = 4L * STREAM_BUFFER_SIZE;
+	// Largest region of a file that is mapped at once (a single mapping cannot exceed 2GB)
+	private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+
+	/*
+	 * Utility method that eliminates duplicate words from a file of any size. The file is read through a fixed size buffer and pushed
+	 * through a DupScanner, which carries any token that is still undecided at the end of a buffer over to the next one, and the
+	 * output goes to a temporary file in the same directory that then replaces the input file. Peak memory is the buffer plus the
+	 * longest token or whitespace run, however large the file is.
+	 */
+	public static boolean elimDupsStreaming(Path path)
+	{
+		return rewriteThroughScanner(path, false, new RunMetrics.FileStats(path));
+	}
+
+	/*
+	 * Utility method that does the same as elimDupsStreaming but decodes the text directly out of memory mapped windows of the file,
+	 * which saves the copy from the page cache into a heap buffer. The only heap memory used for the input is the decoded chunk
+	 * that is handed to the scanner, and for UTF-8 (scanned as bytes) not even that.
+	 */
+	public static boolean elimDupsMapped(Path path)
+	{
+		return rewriteThroughScanner(path, true, new RunMetrics.FileStats(path));
+	}
+
+	/*
+	 * Utility method that eliminates duplicates from everything read from in up to its end and writes the result to out as it goes
+	 * (the filter mode of the command line, standard input to standard output). Whatever a read returns is pushed through the
+	 * scanner at once and out is flushed after it, so text leaves as soon as it can no longer be part of a duplicate, and memory
+	 * stays at the read buffer plus the undecided text however long the input runs. Neither stream is closed. The run is recorded
+	 * in RunMetrics as a file named "-".
+	 */
+	public static boolean filter(InputStream in, OutputStream out) throws IOException
+	{
+		RunMetrics.FileStats stats = new RunMetrics.FileStats(STANDARD_INPUT);
+		CountingOutputStream counted = new CountingOutputStream(out);
+		DuplicateEliminator engine = ENGINES.get();
+		boolean changed;
+		long start = System.nanoTime();
+		if (StandardCharsets.UTF_8.equals(charset))
+		{
+			ByteDupScanner scanner = engine.scanner(counted);
+			byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+			int n;
+			while ((n = in.read(chunk)) != -1)
+			{
+				long scanStart = System.nanoTime();
+				stats.readNanos += scanStart - start;
+				stats.bytesIn += n;
+				scanner.write(chunk, 0, n);
+				counted.flush();
+				start = System.nanoTime();
+				stats.scanNanos += start - scanStart;
+			}
+			stats.readNanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			changed = scanner.finish();
+			stats.duplicates = scanner.duplicatesRemoved();
+		}
+		else
+		{
+			CountingInputStream countedIn = new CountingInputStream(in);
+			Reader reader = new InputStreamReader(countedIn, charset);
+			Writer writer = new OutputStreamWriter(counted, charset);
+			DupScanner scanner = engine.scanner(writer);
+			char[] chunk = new char[STREAM_BUFFER_SIZE];
+			int n;
+			while ((n = reader.read(chunk)) != -1)
+			{
+				long scanStart = System.nanoTime();
+				stats.readNanos += scanStart - start;
+				scanner.write(chunk, 0, n);
+				writer.flush();
+				start = System.nanoTime();
+				stats.scanNanos += start - scanStart;
+			}
+			stats.readNanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			changed = scanner.finish();
+			writer.flush();
+			stats.duplicates = scanner.duplicatesRemoved();
+			stats.bytesIn = countedIn.count;
+		}
+		counted.flush();
+		stats.scanNanos += System.nanoTime() - start;
+		stats.bytesOut = counted.count;
+		RunMetrics.fileDone(stats, changed);
+		return changed;
+	}
+
+	// Name filter runs are recorded under, like the "-" that asks for them on the command line
+	private static final Path STANDARD_INPUT = Paths.get("-");
+
+	// Output stream that counts the bytes going through it
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	// The same for an input stream
+	private static final class CountingInputStream extends FilterInputStream {
+
+		private long count;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = in.read();
+			if (b != -1)
+			{
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = in.read(b, off, len);
+			if (n > 0)
+			{
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	// Output stream that puts the bytes going through it into a content hash
+	private static final class HashingOutputStream extends FilterOutputStream {
+
+		private final Manifest.ContentHash hash;
+
+		HashingOutputStream(OutputStream out, Manifest.ContentHash hash)
+		{
+			super(out);
+			this.hash = hash;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			hash.update(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			hash.update(b, off, len);
+		}
+	}
+
+	// The same for an input stream
+	private static final class HashingInputStream extends FilterInputStream {
+
+		private final Manifest.ContentHash hash;
+
+		HashingInputStream(InputStream in, Manifest.ContentHash hash)
+		{
+			super(in);
+			this.hash = hash;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = in.read();
+			if (b != -1)
+			{
+				hash.update(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = in.read(b, off, len);
+			if (n > 0)
+			{
+				hash.update(b, off, n);
+			}
+			return n;
+		}
+	}
+
+	// Helper method that has the bytes written to out also go to hash (out itself if hash is null)
+	private static OutputStream hashing(OutputStream out, Manifest.ContentHash hash)
+	{
+		return hash == null ? out : new HashingOutputStream(out, hash);
+	}
+
+	// Helper method that puts the bytes of a file read at once into its read hash, if it has one
+	private static void hashRead(RunMetrics.FileStats stats, byte[] content)
+	{
+		if (stats.readHash != null)
+		{
+			stats.readHash.update(content, 0, content.length);
+		}
+	}
+
+	/*
+	 * Output stream that puts what a ByteDupScanner gives back into the very file the scanner reads, for inPlace. Until the scanner
+	 * drops its first duplicate what it writes is the file as it is, so that is only counted; from there on it is written (through a
+	 * buffer) at the position it belongs at. Output is never longer than the input it came from, so that position never gets ahead
+	 * of what has been read. The file is only opened for writing once there is something to write. Everything written to it, counted
+	 * or written, goes to hash unless it is null, which so gets the content of the file as it is left.
+	 */
+	private static final class InPlaceOutput extends OutputStream {
+
+		private final Path path;
+		private final Manifest.ContentHash hash;
+		private final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		// The scanner writing to this stream, which tells when the first duplicate has been dropped
+		private ByteDupScanner scanner;
+		private FileChannel channel;
+		// Position in the file of the first byte in the buffer
+		private long position;
+
+		InPlaceOutput(Path path, Manifest.ContentHash hash)
+		{
+			this.path = path;
+			this.hash = hash;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (hash != null)
+			{
+				hash.update(b);
+			}
+			if (unchanged())
+			{
+				position++;
+				return;
+			}
+			if (!buffer.hasRemaining())
+			{
+				drain();
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (hash != null)
+			{
+				hash.update(b, off, len);
+			}
+			if (unchanged())
+			{
+				position += len;
+				return;
+			}
+			while (len > 0)
+			{
+				if (!buffer.hasRemaining())
+				{
+					drain();
+				}
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/*
+		 * Writes what is left, cuts the file off after it and forces it to disk if syncing, and tells replacing about the file if it
+		 * was written to. Returns the length of the file.
+		 */
+		long finishFile() throws IOException
+		{
+			drain();
+			// (a file whose output is all written before the first duplicate is dropped is only cut off)
+			if (!unchanged())
+			{
+				channel.truncate(position);
+				forceIfSyncing(channel);
+				tellReplacing(path, path);
+			}
+			return position;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (channel != null)
+			{
+				channel.close();
+			}
+		}
+
+		private boolean unchanged() throws IOException
+		{
+			if (channel != null)
+			{
+				return false;
+			}
+			if (scanner.duplicatesRemoved() == 0)
+			{
+				return true;
+			}
+			channel = FileChannel.open(path, StandardOpenOption.WRITE);
+			return false;
+		}
+
+		private void drain() throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining())
+			{
+				position += channel.write(buffer, position);
+			}
+			buffer.clear();
+		}
+	}
+
+	/*
+	 * Helper method that pushes a file through a DupScanner into a temporary file, which replaces the file if the scanner found any
+	 * duplicates and is thrown away otherwise. Returns true if the file was replaced, and throws UncheckedIOException (leaving the file
+	 * as it was) if it could not be read or replaced. Reading and scanning take turns chunk by chunk, the time of each goes to stats.
+	 */
+	private static boolean rewriteThroughScanner(Path path, boolean mapped, RunMetrics.FileStats stats)
+	{
+		if (inPlace && scansBytes())
+		{
+			return rewriteStreamedInPlace(path, stats);
+		}
+		// Note: a file in another charset is still replaced as a whole, its scanner's output is not byte for byte its input
+		Path temp = null;
+		try
+		{
+			temp = createSiblingTemp(path);
+			boolean changed;
+			// Note: same charset as readTextFile and writeTextFile so all paths give the same bytes
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+			{
+				Flushable out;
+				long scanStart;
+				if (scansBytes())
+				{
+					OutputStream written = hashing(Channels.newOutputStream(channel), stats.writtenHash);
+					BufferedOutputStream bytes = new BufferedOutputStream(written, STREAM_BUFFER_SIZE);
+					ByteDupScanner scanner = ENGINES.get().scanner(bytes);
+					if (mapped)
+					{
+						feedMapped(path, scanner, stats);
+					}
+					else
+					{
+						feedStreamed(path, scanner, stats);
+					}
+					scanStart = System.nanoTime();
+					changed = scanner.finish();
+					stats.duplicates = scanner.duplicatesRemoved();
+					out = bytes;
+				}
+				else
+				{
+					Writer chars = new BufferedWriter(
+							new OutputStreamWriter(hashing(Channels.newOutputStream(channel), stats.writtenHash), charset),
+							STREAM_BUFFER_SIZE);
+					DupScanner scanner = ENGINES.get().scanner(chars);
+					if (mapped)
+					{
+						feedMapped(path, scanner, stats);
+					}
+					else
+					{
+						feedStreamed(path, scanner, stats);
+					}
+					scanStart = System.nanoTime();
+					changed = scanner.finish();
+					stats.duplicates = scanner.duplicatesRemoved();
+					out = chars;
+				}
+				long writeStart = System.nanoTime();
+				stats.scanNanos += writeStart - scanStart;
+				stats.bytesOut = stats.bytesIn;
+				if (changed)
+				{
+					out.flush();
+					stats.bytesOut = channel.position();
+					forceIfSyncing(channel);
+				}
+				stats.writeNanos += System.nanoTime() - writeStart;
+			}
+			if (changed)
+			{
+				long commitStart = System.nanoTime();
+				commit(temp, path, stats.links);
+				stats.writeNanos += System.nanoTime() - commitStart;
+			}
+			else
+			{
+				Files.delete(temp);
+			}
+			return changed;
+		}
+		catch (IOException e)
+		{
+			deleteQuietly(temp);
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Helper method that tells whether a file is to be decompressed before it is scanned (and compressed again after)
+	private static boolean isCompressed(Path path)
+	{
+		Path name = path.getFileName();
+		return gzip && name != null && VerificationUtil.isGzip(name.toString());
+	}
+
+	/*
+	 * Helper method that streams a compressed file through decompression and a scanner into a compressed temporary file, which
+	 * replaces the file if any duplicates were dropped. The bytes of a UTF-8 file only start going into the compressor once the
+	 * first duplicate has been dropped (see CompressedOutput), so a file without duplicates is decompressed once and never
+	 * compressed. Throws UncheckedIOException (leaving the file as it was) if it could not be read, is not gzip, or could not be
+	 * replaced.
+	 */
+	private static boolean rewriteCompressed(Path path, RunMetrics.FileStats stats)
+	{
+		Path temp = null;
+		CompressedOutput compressed = null;
+		try
+		{
+			boolean changed;
+			if (scansBytes())
+			{
+				compressed = new CompressedOutput(path, stats.writtenHash);
+				try (CompressedOutput out = compressed)
+				{
+					ByteDupScanner scanner = out.scanner = ENGINES.get().scanner(out);
+					feedStreamed(path, scanner, stats);
+					long scanStart = System.nanoTime();
+					changed = scanner.finish();
+					stats.duplicates = scanner.duplicatesRemoved();
+					long writeStart = System.nanoTime();
+					stats.scanNanos += writeStart - scanStart;
+					temp = out.temp;
+					stats.bytesOut = changed ? out.finishFile() : stats.bytesIn;
+					stats.writeNanos += System.nanoTime() - writeStart;
+				}
+			}
+			else
+			{
+				// Note: text in another charset is compressed as it goes, its scanner's output is not byte for byte its input
+				temp = createSiblingTemp(path);
+				try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+						Compressor zip = new Compressor(hashing(Channels.newOutputStream(channel), stats.writtenHash)))
+				{
+					Writer chars = new BufferedWriter(new OutputStreamWriter(zip, charset), STREAM_BUFFER_SIZE);
+					DupScanner scanner = ENGINES.get().scanner(chars);
+					feedStreamed(path, scanner, stats);
+					long scanStart = System.nanoTime();
+					changed = scanner.finish();
+					stats.duplicates = scanner.duplicatesRemoved();
+					long writeStart = System.nanoTime();
+					stats.scanNanos += writeStart - scanStart;
+					stats.bytesOut = stats.bytesIn;
+					if (changed)
+					{
+						chars.flush();
+						zip.finish();
+						stats.bytesOut = channel.position();
+						forceIfSyncing(channel);
+					}
+					stats.writeNanos += System.nanoTime() - writeStart;
+				}
+			}
+			if (changed)
+			{
+				long commitStart = System.nanoTime();
+				commit(temp, path, stats.links);
+				stats.writeNanos += System.nanoTime() - commitStart;
+			}
+			else if (temp != null)
+			{
+				Files.delete(temp);
+			}
+			return changed;
+		}
+		catch (IOException e)
+		{
+			deleteQuietly(compressed != null ? compressed.temp : temp);
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/*
+	 * Gzip stream compressing at gzipLevel. Closing it only frees the native memory of its deflater (right away, rather than
+	 * whenever the garbage collector gets to it), finished or not: what it wrote so far is thrown away on failure, so it is not
+	 * finished on the way out, and its file is closed by its owner.
+	 */
+	private static final class Compressor extends GZIPOutputStream {
+
+		Compressor(OutputStream out) throws IOException
+		{
+			super(out, STREAM_BUFFER_SIZE);
+			def.setLevel(gzipLevel);
+		}
+
+		@Override
+		public void close()
+		{
+			def.end();
+		}
+	}
+
+	/*
+	 * Output stream that compresses what a ByteDupScanner gives back into a temporary file next to the compressed file it scans.
+	 * Until the scanner drops its first duplicate what it writes is the decompressed file as it is, so that is only counted; at the
+	 * first duplicate the temporary file is created, that many bytes of the file are decompressed into it once more, and from there
+	 * on the scanner's output follows them. Decompressing is several times faster than compressing, and files without duplicates
+	 * are never compressed at all.
+	 */
+	private static final class CompressedOutput extends OutputStream {
+
+		private final Path path;
+		// Hash of the compressed bytes written (null for none)
+		private final Manifest.ContentHash hash;
+		// The scanner writing to this stream, which tells when the first duplicate has been dropped
+		private ByteDupScanner scanner;
+		private Path temp;
+		private FileChannel channel;
+		private Compressor zip;
+		private OutputStream out;
+		private long skipped;
+
+		CompressedOutput(Path path, Manifest.ContentHash hash)
+		{
+			this.path = path;
+			this.hash = hash;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (unchanged())
+			{
+				skipped++;
+				return;
+			}
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (unchanged())
+			{
+				skipped += len;
+				return;
+			}
+			out.write(b, off, len);
+		}
+
+		// Finishes the compressed file and forces it to disk if syncing, returns its length
+		long finishFile() throws IOException
+		{
+			out.flush();
+			zip.finish();
+			forceIfSyncing(channel);
+			return channel.position();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (zip != null)
+			{
+				zip.close();
+			}
+			if (channel != null)
+			{
+				channel.close();
+			}
+		}
+
+		private boolean unchanged() throws IOException
+		{
+			if (out != null)
+			{
+				return false;
+			}
+			if (scanner.duplicatesRemoved() == 0)
+			{
+				return true;
+			}
+			temp = createSiblingTemp(path);
+			channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			zip = new Compressor(hashing(Channels.newOutputStream(channel), hash));
+			out = new BufferedOutputStream(zip, STREAM_BUFFER_SIZE);
+			// the text before the first duplicate, which went by uncompressed
+			try (InputStream in = openText(path, null))
+			{
+				byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+				for (long left = skipped; left > 0;)
+				{
+					int n = in.read(chunk, 0, (int) Math.min(chunk.length, left));
+					if (n < 0)
+					{
+						throw new IOException(path + " changed while it was being processed");
+					}
+					out.write(chunk, 0, n);
+					left -= n;
+				}
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * Helper method that streams a UTF-8 file through a ByteDupScanner and back into the file itself, from the first duplicate on
+	 * (see InPlaceOutput). A failure part way through leaves the file partly rewritten.
+	 */
+	private static boolean rewriteStreamedInPlace(Path path, RunMetrics.FileStats stats)
+	{
+		try (InPlaceOutput out = new InPlaceOutput(path, stats.writtenHash))
+		{
+			ByteDupScanner scanner = out.scanner = ENGINES.get().scanner(out);
+			feedStreamed(path, scanner, stats);
+			long scanStart = System.nanoTime();
+			boolean changed = scanner.finish();
+			stats.duplicates = scanner.duplicatesRemoved();
+			long writeStart = System.nanoTime();
+			stats.scanNanos += writeStart - scanStart;
+			stats.bytesOut = stats.bytesIn;
+			if (changed)
+			{
+				stats.bytesOut = out.finishFile();
+			}
+			stats.writeNanos += System.nanoTime() - writeStart;
+			return changed;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/*
+	 * Helper method that opens a file for reading its text, decompressing it on the way if it is compressed. The bytes of the file
+	 * (before decompressing) go to hash as they are read, unless it is null.
+	 */
+	private static InputStream openText(Path path, Manifest.ContentHash hash) throws IOException
+	{
+		InputStream in = Files.newInputStream(path);
+		if (hash != null)
+		{
+			in = new HashingInputStream(in, hash);
+		}
+		if (isCompressed(path))
+		{
+			try
+			{
+				return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+			}
+			catch (IOException e)
+			{
+				// not gzip after all
+				in.close();
+				throw e;
+			}
+		}
+		return in;
+	}
+
+	/*
+	 * Set to true (-Delimdups.audit or --audit) to only find out which files have duplicates, without writing anything: each file is
+	 * read through the scanner up to its first duplicate, and reported on standard output with where that is. With auditCounts
+	 * (-Delimdups.auditCounts or --audit=count) files are read to the end and their duplicates counted. Files only need to be
+	 * readable, so read-only files and mounts can be audited.
+	 */
+	public static boolean audit = Boolean.getBoolean("elimdups.audit");
+	public static boolean auditCounts = Boolean.getBoolean("elimdups.auditCounts");
+
+	/*
+	 * Helper method behind audit that streams a file (decompressing it if it is compressed) through a scanner whose output goes
+	 * nowhere, and reports the file if it has duplicates. The offset reported is that of the first byte (of a UTF-8 file, or the
+	 * first character in other charsets) that eliminating the duplicates would remove. Returns true if the file has duplicates,
+	 * throws UncheckedIOException if it could not be read.
+	 */
+	private static boolean auditFile(Path path, RunMetrics.FileStats stats)
+	{
+		AuditSink sink = new AuditSink();
+		long start = System.nanoTime();
+		if (scansBytes())
+		{
+			try (InputStream in = openText(path, stats.readHash))
+			{
+				ByteDupScanner scanner = ENGINES.get().scanner((OutputStream) sink);
+				sink.scanner = scanner::duplicatesRemoved;
+				byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+				int n = 0;
+				// (stops at the end of the chunk that confirmed the first duplicate)
+				while ((auditCounts || !sink.found()) && (n = in.read(chunk)) != -1)
+				{
+					long scanStart = System.nanoTime();
+					scanner.write(chunk, 0, n);
+					long scanEnd = System.nanoTime();
+					stats.readNanos += scanStart - start;
+					stats.scanNanos += scanEnd - scanStart;
+					start = scanEnd;
+				}
+				if (n == -1)
+				{
+					scanner.finish();
+				}
+				stats.duplicates = scanner.duplicatesRemoved();
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+		else
+		{
+			try (Reader in = new InputStreamReader(openText(path, stats.readHash), charset))
+			{
+				DupScanner scanner = ENGINES.get().scanner((Appendable) sink);
+				sink.scanner = scanner::duplicatesRemoved;
+				char[] chunk = new char[STREAM_BUFFER_SIZE];
+				int n = 0;
+				while ((auditCounts || !sink.found()) && (n = in.read(chunk)) != -1)
+				{
+					long scanStart = System.nanoTime();
+					scanner.write(chunk, 0, n);
+					long scanEnd = System.nanoTime();
+					stats.readNanos += scanStart - start;
+					stats.scanNanos += scanEnd - scanStart;
+					start = scanEnd;
+				}
+				if (n == -1)
+				{
+					scanner.finish();
+				}
+				stats.duplicates = scanner.duplicatesRemoved();
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+		stats.readNanos += System.nanoTime() - start;
+		stats.bytesOut = stats.bytesIn;
+		if (!sink.found())
+		{
+			return false;
+		}
+		stats.firstDuplicate = sink.unchanged;
+		String offset = (scansBytes() ? "byte " : "character ") + sink.unchanged;
+		System.out.println(auditCounts ? path + ": " + stats.duplicates + " duplicates, the first at " + offset
+				: path + ": duplicate at " + offset);
+		return true;
+	}
+
+	/*
+	 * Output of a scanner that audits a file: throws everything away, only counting what the scanner wrote before it dropped its
+	 * first duplicate (which is the input up to that duplicate, unchanged)
+	 */
+	private static final class AuditSink extends OutputStream implements Appendable {
+
+		// Duplicates the scanner writing to this has dropped so far
+		private LongSupplier scanner;
+		private long unchanged;
+
+		boolean found()
+		{
+			return scanner.getAsLong() > 0;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			if (!found())
+			{
+				unchanged++;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			if (!found())
+			{
+				unchanged += len;
+			}
+		}
+
+		@Override
+		public Appendable append(CharSequence csq)
+		{
+			return append(csq, 0, String.valueOf(csq).length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end)
+		{
+			if (!found())
+			{
+				unchanged += end - start;
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c)
+		{
+			if (!found())
+			{
+				unchanged++;
+			}
+			return this;
+		}
+	}
+
+	// Helper method that reads a file through a fixed size buffer into a scanner (decompressing it if it is compressed)
+	private static void feedStreamed(Path path, DupScanner scanner, RunMetrics.FileStats stats) throws IOException
+	{
+		long start = System.nanoTime();
+		try (Reader in = new InputStreamReader(openText(path, stats.readHash), charset))
+		{
+			char[] chunk = new char[STREAM_BUFFER_SIZE];
+			int n;
+			while ((n = in.read(chunk)) != -1)
+			{
+				long scanStart = System.nanoTime();
+				scanner.write(chunk, 0, n);
+				long scanEnd = System.nanoTime();
+				stats.readNanos += scanStart - start;
+				stats.scanNanos += scanEnd - scanStart;
+				start = scanEnd;
+			}
+		}
+		stats.readNanos += System.nanoTime() - start;
+	}
+
+	/*
+	 * Helper method that maps a file one window at a time and decodes each window into a fixed size buffer for the scanner. A
+	 * character whose bytes straddle two windows is left undecoded and the next window is mapped from its first byte.
+	 */
+	private static void feedMapped(Path path, DupScanner scanner, RunMetrics.FileStats stats) throws IOException
+	{
+		long start = System.nanoTime();
+		long scanBefore = stats.scanNanos;
+		// malformed input is replaced, like new String(byte[]) and InputStreamReader do
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chunk = CharBuffer.allocate(STREAM_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			long position = 0;
+			boolean last = false;
+			while (!last)
+			{
+				long length = Math.min(MAP_WINDOW_SIZE, size - position);
+				last = position + length == size;
+				MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				while (decoder.decode(bytes, chunk, last).isOverflow())
+				{
+					drain(chunk, scanner, stats);
+				}
+				if (stats.readHash != null)
+				{
+					// (up to the character left for the next window)
+					stats.readHash.update(bytes.duplicate().flip());
+				}
+				position += bytes.position();
+			}
+			while (decoder.flush(chunk).isOverflow())
+			{
+				drain(chunk, scanner, stats);
+			}
+			drain(chunk, scanner, stats);
+		}
+		// whatever was not spent in the scanner went into mapping and decoding
+		stats.readNanos += System.nanoTime() - start - (stats.scanNanos - scanBefore);
+	}
+
+	// Helper method that does the same as feedStreamed for the bytes of a UTF-8 file
+	private static void feedStreamed(Path path, ByteDupScanner scanner, RunMetrics.FileStats stats) throws IOException
+	{
+		long start = System.nanoTime();
+		try (InputStream in = openText(path, stats.readHash))
+		{
+			byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+			int n;
+			while ((n = in.read(chunk)) != -1)
+			{
+				long scanStart = System.nanoTime();
+				scanner.write(chunk, 0, n);
+				long scanEnd = System.nanoTime();
+				stats.readNanos += scanStart - start;
+				stats.scanNanos += scanEnd - scanStart;
+				start = scanEnd;
+			}
+		}
+		stats.readNanos += System.nanoTime() - start;
+	}
+
+	/*
+	 * Helper method that hands the mapped windows of a UTF-8 file to the scanner as they are. Nothing is decoded, and the scanner
+	 * keeps a character that straddles two windows together itself, so the windows are simply laid end to end.
+	 */
+	private static void feedMapped(Path path, ByteDupScanner scanner, RunMetrics.FileStats stats) throws IOException
+	{
+		long start = System.nanoTime();
+		long scanBefore = stats.scanNanos;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			for (long position = 0; position < size; position += MAP_WINDOW_SIZE)
+			{
+				MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, size - position));
+				if (stats.readHash != null)
+				{
+					stats.readHash.update(bytes);
+				}
+				long scanStart = System.nanoTime();
+				scanner.write(bytes);
+				stats.scanNanos += System.nanoTime() - scanStart;
+			}
+		}
+		// whatever was not spent in the scanner went into mapping and paging in
+		stats.readNanos += System.nanoTime() - start - (stats.scanNanos - scanBefore);
+	}
+
+	// Helper method that hands the decoded characters to the scanner and empties the buffer
+	private static void drain(CharBuffer chunk, DupScanner scanner, RunMetrics.FileStats stats) throws IOException
+	{
+		long start = System.nanoTime();
+		chunk.flip();
+		scanner.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+		chunk.clear();
+		stats.scanNanos += System.nanoTime() - start;
+	}
+
+	// Set to false to skip forcing rewritten files and their directories to disk (faster, but a crash can lose the rewrite)
+	public static boolean syncWrites = true;
+	/*
+	 * Set to true (-Delimdups.inPlace or --in-place) to write the changes into the file itself instead of into a temporary file
+	 * that replaces it. Everything before the first duplicate is left as it is, only the rest is written and the file is cut off
+	 * after it, which on big files that only change near their end (e.g. logs that are appended to) saves nearly all of the writing
+	 * and keeps the unchanged blocks shared on copy-on-write file systems. The file keeps its inode, owner and links too. The price
+	 * is that a crash or failure part way through leaves the file partly rewritten, where the rename leaves the old or the new
+	 * content.
+	 */
+	public static boolean inPlace = Boolean.getBoolean("elimdups.inPlace");
+	/*
+	 * Set to true (-Delimdups.gzip or --gzip) to also process text files compressed with gzip, named like the text files with .gz
+	 * added (a.txt.gz for the extension txt). They are decompressed, scanned and compressed again on the fly into a temporary file
+	 * that replaces them, with nothing decompressed ever written to disk, at gzipLevel (1 fastest to 9 smallest,
+	 * -Delimdups.gzipLevel or --gzip-level).
+	 */
+	public static boolean gzip = Boolean.getBoolean("elimdups.gzip");
+	public static int gzipLevel = Integer.getInteger("elimdups.gzipLevel", 6);
+	/*
+	 * Directories whose entries changed but have not been forced to disk yet. While a directory run is going this is a set and each
+	 * directory is forced once at the end of the run, otherwise (null) a directory is forced as soon as a file in it is replaced.
+	 */
+	private static Set<Path> unsyncedDirs = null;
+	/*
+	 * Claims a file with more than one link for processing by its file key (device and inode), false if it already has been
+	 * claimed, so that a file is processed once however many of its links a directory run comes across. Remembers the keys for a
+	 * single run, or asks the coordinator in a worker of a sharded run. Null outside of directory runs.
+	 */
+	private static Predicate<Object> linkedFiles = null;
+	/*
+	 * Told about every file this program changes, with the attributes it has afterwards, so that the watch daemon can tell its own
+	 * changes from a producer's. A file renamed into place is told about before the rename (the rename keeps the attributes of the
+	 * finished file), so before any event it causes; one written over (inPlace, or with more than one link) right after the write.
+	 * Null outside of watch mode.
+	 */
+	static volatile BiConsumer<Path, BasicFileAttributes> replacing = null;
+
+	// Helper method that creates an empty temporary file in the same directory as (and so on the same file system as) the target
+	private static Path createSiblingTemp(Path target) throws IOException
+	{
+		Path dir = target.toAbsolutePath().getParent();
+		return Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+	}
+
+	// Helper method that forces the content of a file that is about to replace another one to disk
+	private static void forceIfSyncing(FileChannel channel) throws IOException
+	{
+		if (syncWrites)
+		{
+			channel.force(true);
+		}
+	}
+
+	/*
+	 * Helper method that puts a finished temporary file in place of its target with an atomic rename (falling back to a plain
+	 * replacing move where the file system cannot do that) and then makes sure the directory entry itself reaches the disk. links
+	 * is the number of links to the target as read with its attributes, 0 if it has not been read (then it is read here).
+	 */
+	private static void commit(Path temp, Path target, int links) throws IOException
+	{
+		if (links == 0)
+		{
+			links = FileAttributes.links(target, null);
+		}
+		if (links > 1)
+		{
+			overwrite(temp, target);
+			tellReplacing(target, target);
+			return;
+		}
+		copyPermissions(target, temp);
+		tellReplacing(target, temp);
+		try
+		{
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (syncWrites)
+		{
+			Path dir = target.toAbsolutePath().getParent();
+			Set<Path> batch = unsyncedDirs;
+			if (batch != null)
+			{
+				batch.add(dir);
+			}
+			else
+			{
+				syncDirectory(dir);
+			}
+		}
+	}
+
+	// Helper method that tells replacing (if set) about a file changed to what finished (the file itself, or the one renamed to it) is
+	private static void tellReplacing(Path target, Path finished) throws IOException
+	{
+		BiConsumer<Path, BasicFileAttributes> listener = replacing;
+		if (listener != null)
+		{
+			listener.accept(target, Files.readAttributes(finished, BasicFileAttributes.class));
+		}
+	}
+
+	/*
+	 * Helper method that copies a finished temporary file over a file with more than one (hard) link and removes it. A rename would
+	 * give only the one link the new content and leave the others with the old, so the file they share is written over instead,
+	 * which like inPlace leaves it partly rewritten after a crash part way through.
+	 */
+	private static void overwrite(Path temp, Path target) throws IOException
+	{
+		try (FileChannel from = FileChannel.open(temp, StandardOpenOption.READ);
+				FileChannel to = FileChannel.open(target, StandardOpenOption.WRITE))
+		{
+			long size = from.size();
+			for (long copied = 0; copied < size;)
+			{
+				copied += from.transferTo(copied, size - copied, to);
+			}
+			to.truncate(size);
+			forceIfSyncing(to);
+		}
+		Files.delete(temp);
+	}
+
+	// Helper method that forces a directory to disk (not every platform can open a directory for that, those are skipped)
+	private static void syncDirectory(Path dir)
+	{
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			// the rename itself went through, only its durability across a crash is left to the file system
+		}
+	}
+
+	// Helper method that gives a temporary file the permissions of the file it is going to replace (createTempFile makes it owner only)
+	private static void copyPermissions(Path from, Path to) throws IOException
+	{
+		PosixFileAttributeView view = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+		if (view != null)
+		{
+			Files.setPosixFilePermissions(to, view.readAttributes().permissions());
+		}
+	}
+
+	// Helper method that removes a leftover temporary file
+	private static void deleteQuietly(Path temp)
+	{
+		if (temp != null)
+		{
+			try
+			{
+				Files.deleteIfExists(temp);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Failed to remove temporary file. " + e);
+			}
+		}
+	}
+
+	/*
+	 * Reference implementation that eliminates duplicate words from a string by replacing each match of NO_DUPS_PATTERN with the first
+	 * instance of the word plus any punctuation that followed it (or, failing that, the punctuation that followed a later duplicate).
+	 * DupScanner produces the same output in a single pass, this is kept to check it against.
+	 */
+	public static String regexElimDups(String fileText)
+	{
+		return regexElimDups(fileText, null);
+	}
+
+	// Helper method behind regexElimDups that also counts the duplicates it drops into stats (if not null)
+	private static String regexElimDups(String fileText, RunMetrics.FileStats stats)
+	{
+		Matcher m = NoDupsPattern.NO_DUPS_PATTERN.matcher(fileText); // create a matcher that will match the text against the pattern
+		if (!m.find())
+		{
+			return fileText; // nothing to eliminate, hand back the same string (like DupScanner does)
+		}
+		StringBuilder sb = new StringBuilder(fileText.length());
+		do // as long a match is found, keep looping
+		{
+			String group1 = m.group(1); // the first instance of the word
+			String group2 = m.group(2); // possible punctuation following first instance of the word
+			String group4 = m.group(4); // punctuation following later duplicate
+			String replacement = group1; // start building the replacement string
+			if (group2 != null) // if any punctuation follows the first instance of the word then ...
+			{
+				// add the punctuation to the string to be used as the replacement
+				replacement += group2;
+			} 
+			else if (group4 != null) // if any punctuation follows a later duplicate but not the first word then...
+			{
+				// add the punctuation to the string to be used as the replacement
+				replacement += group4;
+			}
+			/*
+			 * When a duplicate is found the first instance of it (plus any punctuation) replaces the match in place. The text between
+			 * matches is copied as is, and the replacement is quoted so that characters such as $ and \ in the word are taken literally.
+			 */
+			m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+			if (stats != null)
+			{
+				stats.duplicates += countRepetitions(fileText, m.start(), m.end());
+			}
+		}
+		while (m.find());
+		m.appendTail(sb);
+		return sb.toString();
+	}
+	
+	/*
+	 * Helper method that counts the duplicates in a match: every repetition is whitespace followed by the word (which has none), so
+	 * there is one per run of whitespace.
+	 */
+	private static int countRepetitions(String text, int start, int end)
+	{
+		int runs = 0;
+		for (int k = start; k < end; k++)
+		{
+			if (DupScanner.isSpace(text.charAt(k)) && !DupScanner.isSpace(text.charAt(k - 1)))
+			{
+				runs++;
+			}
+		}
+		return runs;
+	}
+	
+	// Utility method that eliminates duplicates from a file, reporting (rather than throwing) a failure so that a run can go on
+	public static boolean elimDupsIsolated(Path path)
+	{
+		return elimDupsIsolated(path, attributes(path));
+	}
+
+	// The same with the attributes of the file already at hand (e.g. from a walk)
+	static boolean elimDupsIsolated(Path path, BasicFileAttributes attrs)
+	{
+		try
+		{
+			return FileUtil.elimDups(path, attrs);
+		}
+		catch (RuntimeException e)
+		{
+			RunMetrics.fileFailed(path, e);
+			System.err.println("Failed to process " + path + ". " + e);
+			return false;
+		}
+	}
+
+	// Eliminates duplicate words from files in a given directory and its subdirectories
+	public static void searchDirsAndDestroyDups(Path startingDir)
+	{
+		searchDirsAndDestroyDups(startingDir, startingDir, true, ConcurrentHashMap.newKeySet()::add);
+	}
+
+	/*
+	 * The same for a shard of a sharded run (see Coordinator): dir is the starting directory or a directory below it, and only the
+	 * files directly in it are processed unless recursive. Files with more than one link are processed if claimLinked claims them.
+	 */
+	static void searchDirsAndDestroyDups(Path startingDir, Path dir, boolean recursive, Predicate<Object> claimLinked)
+	{
+		/*
+		 * With more than one thread the directories are listed by several walking threads (see TreeWalker) that hand each file to a
+		 * fixed pool of workers. At most 64 files per worker wait in front of the workers and the walking threads block when that
+		 * many do, so the walk can never run far ahead of the workers and pile up millions of pending paths. The waiting files are
+		 * taken biggest first (going by the size the walk read), so that the few big files of a tree are not left to run alone at
+		 * the end, and each worker takes its file's share of the memory budget in elimDups, waiting for it if the other workers hold
+		 * too much.
+		 */
+		ThreadPoolExecutor pool = null;
+		BiConsumer<Path, BasicFileAttributes> elimDupsConsumer = (p, attrs) -> FileUtil.elimDupsIsolated(p, attrs);
+		if (threads > 1)
+		{
+			pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+			ThreadPoolExecutor workers = pool;
+			Semaphore queued = new Semaphore(threads * 64);
+			elimDupsConsumer = (p, attrs) -> {
+				queued.acquireUninterruptibly();
+				workers.execute(new SizedTask(p, attrs, queued));
+			};
+		}
+		
+		/*
+		 * Time spent walking is the time of the whole walk minus the time the walking threads spent handing files over (which is the
+		 * time to process them when they are processed on this thread), the latter shared out over the walking threads.
+		 */
+		FlightEvents.listen();
+		FlightEvents.DirectoryRun event = FlightEvents.directoryRun();
+		if (event != null)
+		{
+			event.begin();
+		}
+		long walkStart = System.nanoTime();
+		LongAdder handOffNanos = new LongAdder();
+		LongAdder handedOver = new LongAdder();
+		BiConsumer<Path, BasicFileAttributes> handOff = elimDupsConsumer;
+		BiConsumer<Path, BasicFileAttributes> timedConsumer = (p, attrs) -> {
+			long start = System.nanoTime();
+			handOff.accept(p, attrs);
+			handOffNanos.add(System.nanoTime() - start);
+			handedOver.increment();
+		};
+
+		// Force every directory that had files replaced to disk once at the end rather than after each file
+		unsyncedDirs = ConcurrentHashMap.newKeySet();
+		linkedFiles = claimLinked;
+		try
+		{
+			/*
+			 * The walk counts the directories for later info purposes, leaves out excluded directories, files that do not have one of
+			 * the extensions or are not included or are excluded by a glob, and files that are not readable and writable, and hands
+			 * each of the remaining files over to have its duplicates eliminated.
+			 */
+			new TreeWalker(new FileSelector(startingDir), threads).walk(dir, recursive, timedConsumer);
+		} 
+		catch (IOException e) 
+		{
+			System.err.println("Failed to walk " + dir + ". " + e);
+		}
+		finally
+		{
+			long walkNanos = Math.max(0, System.nanoTime() - walkStart - handOffNanos.sum() / Math.max(1, threads));
+			RunMetrics.addWalkNanos(walkNanos);
+			if (pool != null)
+			{
+				awaitWorkers(pool);
+			}
+			Set<Path> dirs = unsyncedDirs;
+			unsyncedDirs = null;
+			linkedFiles = null;
+			for (Path changed : dirs)
+			{
+				syncDirectory(changed);
+			}
+			if (event != null)
+			{
+				event.end();
+				if (event.shouldCommit())
+				{
+					event.root = dir.toString();
+					event.files = handedOver.sum();
+					event.walkTime = walkNanos;
+					event.commit();
+				}
+			}
+		}
+	}
+
+	// File handed to the workers of a directory run, bigger files go first
+	private static final class SizedTask implements Runnable, Comparable<SizedTask> {
+
+		private final Path path;
+		private final BasicFileAttributes attrs;
+		private final long size;
+		private final Semaphore queued;
+
+		SizedTask(Path path, BasicFileAttributes attrs, Semaphore queued)
+		{
+			this.path = path;
+			this.attrs = attrs;
+			this.size = attrs.size();
+			this.queued = queued;
+		}
+
+		@Override
+		public void run()
+		{
+			queued.release();
+			FileUtil.elimDupsIsolated(path, attrs);
+		}
+
+		@Override
+		public int compareTo(SizedTask other)
+		{
+			return Long.compare(other.size, size);
+		}
+	}
+
+	// Helper method that waits for the workers to finish the files they were given and shuts the pool down
+	private static void awaitWorkers(ThreadPoolExecutor pool)
+	{
+		pool.shutdown();
+		try
+		{
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+			{
+			}
+		}
+		catch (InterruptedException e)
 		{
-			System.err.println("Failed to process path stream. " + e);
+			System.err.println("Interrupted while waiting for files to be processed. " + e);
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
 		}
 	}
 
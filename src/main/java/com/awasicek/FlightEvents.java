@@ -0,0 +1,202 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/*
+ * JDK Flight Recorder events of a run, for finding out after the fact why a run was slow (from a .jfr file) without attaching a
+ * profiler: one event per file with the time it spent reading, scanning and writing, one per directory run with the time spent
+ * walking, and a throughput event every second. They are recorded like any other JFR events (elimdups.jfc turns them all on, see
+ * there); when no recording is going on an event costs a timestamp and a check.
+ *
+ * A file has one event rather than one per phase because reading, scanning and writing take turns chunk by chunk when a file is
+ * streamed, mapped or compressed, so its phases only exist as sums.
+ */
+final class FlightEvents {
+
+	private FlightEvents()
+	{
+	}
+
+	@Name("elimdups.File")
+	@Label("File Processed")
+	@Description("A file that duplicates were eliminated from (or that was found clean, skipped, audited or failed)")
+	@Category("Search and Destroy")
+	@StackTrace(false)
+	@Threshold("0 ms")
+	static final class File extends Event {
+		@Label("Path")
+		String path;
+		@Label("Outcome")
+		@Description("changed, clean, skipped, failed, or duplicates (found by an audit)")
+		String outcome;
+		@Label("Bytes In")
+		@DataAmount
+		long bytesIn;
+		@Label("Bytes Out")
+		@DataAmount
+		long bytesOut;
+		@Label("Duplicates")
+		@Description("Duplicate words eliminated (or found by an audit)")
+		long duplicates;
+		@Label("Read Time")
+		@Timespan
+		long readTime;
+		@Label("Scan Time")
+		@Timespan
+		long scanTime;
+		@Label("Write Time")
+		@Timespan
+		long writeTime;
+	}
+
+	@Name("elimdups.DirectoryRun")
+	@Label("Directory Run")
+	@Description("A directory and its subdirectories searched for files, from the start of the walk until the last file is done")
+	@Category("Search and Destroy")
+	@StackTrace(false)
+	static final class DirectoryRun extends Event {
+		@Label("Directory")
+		String root;
+		@Label("Files")
+		@Description("Files the walk found and handed over to be processed")
+		long files;
+		@Label("Walk Time")
+		@Description("Time spent walking, without the time spent handing files over")
+		@Timespan
+		long walkTime;
+	}
+
+	@Name("elimdups.Throughput")
+	@Label("Throughput")
+	@Description("Files and bytes processed since the previous throughput event")
+	@Category("Search and Destroy")
+	@StackTrace(false)
+	@Period("1 s")
+	static final class Throughput extends Event {
+		@Label("Files")
+		long files;
+		@Label("Bytes In")
+		@DataAmount
+		long bytesIn;
+		@Label("Bytes Out")
+		@DataAmount
+		long bytesOut;
+		@Label("Duplicates")
+		long duplicates;
+		@Label("Read Rate")
+		@DataAmount
+		@Frequency
+		long bytesInPerSecond;
+	}
+
+	// Totals as of the previous throughput event
+	private static long lastNanos = System.nanoTime();
+	private static long lastFiles;
+	private static long lastBytesIn;
+	private static long lastBytesOut;
+	private static long lastDuplicates;
+
+	/*
+	 * Whether the events are created at all. Loading the first event class initializes most of the recorder even when nothing is
+	 * recorded, which takes longer than a whole run over a single file, so that is only done once the recorder is initialized.
+	 */
+	private static volatile boolean created;
+	private static final AtomicBoolean listening = new AtomicBoolean();
+
+	// A new file event, or null if the recorder has not been initialized
+	static File file()
+	{
+		return created ? new File() : null;
+	}
+
+	// A new directory run event, or null if the recorder has not been initialized
+	static DirectoryRun directoryRun()
+	{
+		return created ? new DirectoryRun() : null;
+	}
+
+	// Starts creating the events and registers the throughput event if the recorder is running (e.g. with -XX:StartFlightRecording)
+	static void register()
+	{
+		if (FlightRecorder.isInitialized())
+		{
+			listen();
+		}
+	}
+
+	/*
+	 * The same as soon as the recorder is initialized, which is right away if it already is or else when a recording is started
+	 * later on (e.g. with jcmd JFR.start), for runs that go on long enough for that: directory runs and watching. Listening costs
+	 * some 30 ms the first time.
+	 */
+	static void listen()
+	{
+		if (listening.compareAndSet(false, true))
+		{
+			FlightRecorder.addListener(new FlightRecorderListener() {
+				@Override
+				public void recorderInitialized(FlightRecorder recorder)
+				{
+					created = true;
+					FlightRecorder.addPeriodicEvent(Throughput.class, FlightEvents::emitThroughput);
+				}
+			});
+		}
+	}
+
+	// Called by the recorder once a period while the throughput event is on
+	private static synchronized void emitThroughput()
+	{
+		long now = System.nanoTime();
+		long files = RunMetrics.changedCount() + RunMetrics.cleanCount() + RunMetrics.skippedCount() + RunMetrics.failedCount();
+		long bytesIn = RunMetrics.bytesIn();
+		long bytesOut = RunMetrics.bytesOut();
+		long duplicates = RunMetrics.duplicatesRemoved();
+		Throughput event = new Throughput();
+		// after RunMetrics.reset the totals start again from 0
+		event.files = Math.max(0, files - lastFiles);
+		event.bytesIn = Math.max(0, bytesIn - lastBytesIn);
+		event.bytesOut = Math.max(0, bytesOut - lastBytesOut);
+		event.duplicates = Math.max(0, duplicates - lastDuplicates);
+		event.bytesInPerSecond = now > lastNanos ? event.bytesIn * 1000000000L / (now - lastNanos) : 0;
+		event.commit();
+		lastNanos = now;
+		lastFiles = files;
+		lastBytesIn = bytesIn;
+		lastBytesOut = bytesOut;
+		lastDuplicates = duplicates;
+	}
+}
@@ -20,6 +20,8 @@
 package com.awasicek;
 
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
 
 public final class InfoUtil {
@@ -30,25 +32,29 @@ public final class InfoUtil {
 	{	
 	}
 	
-	// Utility method that takes user input from console/command line and exits the program or allows it to continue
-	public static void bootReady()
+	/*
+	 * Utility method that takes user input from console/command line and returns whether the program should continue. Only used for
+	 * interactive runs, a batch run never waits for input.
+	 */
+	public static boolean bootReady()
 	{
 		System.out.println("Initializing Search and Destroy v1.0 . . .");
 		System.out.println("Are you sure you are ready to launch the ultimate computer program? (yes or no, defaults to no)");
 		Scanner scanner = new Scanner(System.in); // open a scanner to read input
-		String input = scanner.nextLine(); // take the next line of user input and store it in a string
+		String input = scanner.hasNextLine() ? scanner.nextLine() : ""; // take the next line of user input and store it in a string
 		if (!input.equals("yes"))
 		{
 			System.out.println("Search and Destroy v1.0: You indicated you are not ready for the power of this software.  Come back when you are prepared.");
-			System.exit(0);
+			return false;
 		}
 		System.out.println("Do you want to see cutting edge \"graphics\"? (yes or no, defaults to yes)");
-		input = scanner.nextLine(); // take the next line of user input and store it in a string
+		input = scanner.hasNextLine() ? scanner.nextLine() : ""; // take the next line of user input and store it in a string
 		if (input.equals("no"))
 		{
 			useGraphics = false; // toggle the graphics state off
 		}
-		scanner.close(); // close the scanner
+		// Note: the scanner is not closed, that would close System.in
+		return true;
 	}
 	
 	// Utility method that makes the start of the program ultra-exciting
@@ -74,7 +80,7 @@ public final class InfoUtil {
 		}
 	}
 	
-	// Utility method that makes the process of eliminating duplicates ultra-exciting too
+	// Utility method that makes the process of eliminating duplicates ultra-exciting too (shown once the files have been processed)
 	public static void elimInfo(boolean useGraphics)
 	{
 		if (useGraphics)
@@ -99,25 +105,61 @@ public final class InfoUtil {
 	
 	/*
 	 * Utility method that displays information about the file(s) that had duplicates eliminated, or the directory structure if
-	 * all no readable/writable text files were found in the directory or subdirectories.
+	 * all no readable/writable text files were found in the directory or subdirectories. At most RunMetrics.reportLimit paths of
+	 * each kind are listed, followed by how many more there were.
 	 */
 	public static void endReport()
 	{
-		if (!FileUtil.filesList.isEmpty())
+		if (RunMetrics.skippedCount() > 0)
 		{
-			System.out.println("Success: Search and Destroy v1.0 successfully eliminated duplicates from the following files:");
-			for(Path p : FileUtil.filesList)
-			{
-				System.out.println(p.toString());
-			}
+			System.out.println("Skipped: " + RunMetrics.skippedCount() + " files were unchanged since an earlier run left them clean.");
+		}
+		if (!RunMetrics.processedFiles.isEmpty() && FileUtil.audit)
+		{
+			System.out.println("Audit: Search and Destroy v1.0 read the following files without changing them:");
+			printPaths(RunMetrics.processedFiles);
+		}
+		else if (!RunMetrics.processedFiles.isEmpty())
+		{
+			System.out.println("Success: Search and Destroy v1.0 processed the following files (the totals below say how many it changed):");
+			printPaths(RunMetrics.processedFiles);
 		} 
-		else
+		else if (RunMetrics.skippedCount() == 0)
 		{
 			System.out.println("No Files Found: Search and Destroy v1.0 did not locate any readable/writable text files in the following directories:");
-			for(Path p : FileUtil.dirList)
-			{
-				System.out.println(p.toString());
-			}
+			printPaths(RunMetrics.directories);
+		}
+		if (!RunMetrics.failedFiles.isEmpty())
+		{
+			System.out.println("Errors: Search and Destroy v1.0 could not process the following files:");
+			printPaths(RunMetrics.failedFiles);
+		}
+		if (FileUtil.audit)
+		{
+			System.out.println(String.format(Locale.ROOT,
+					"Totals: %d files with duplicates, %d clean, %d bytes in %.3f s (per file: p50 <= %.2f ms, p99 <= %.2f ms).",
+					RunMetrics.changedCount(), RunMetrics.cleanCount(), RunMetrics.bytesIn(), RunMetrics.runSeconds(),
+					RunMetrics.latencyPercentile(0.5) * 1000, RunMetrics.latencyPercentile(0.99) * 1000));
+			return;
+		}
+		System.out.println(String.format(Locale.ROOT,
+				"Totals: %d files changed, %d already clean, %d duplicates removed, %d bytes read, %d bytes written in %.3f s "
+				+ "(per file: p50 <= %.2f ms, p99 <= %.2f ms).", RunMetrics.changedCount(), RunMetrics.cleanCount(),
+				RunMetrics.duplicatesRemoved(), RunMetrics.bytesIn(), RunMetrics.bytesOut(), RunMetrics.runSeconds(),
+				RunMetrics.latencyPercentile(0.5) * 1000, RunMetrics.latencyPercentile(0.99) * 1000));
+	}
+
+	// Helper method that prints the paths kept in a sample and how many were left out
+	private static void printPaths(RunMetrics.PathSample sample)
+	{
+		List<Path> paths = sample.paths();
+		for (Path p : paths)
+		{
+			System.out.println(p.toString());
+		}
+		if (sample.count() > paths.size())
+		{
+			System.out.println(". . . and " + (sample.count() - paths.size()) + " more.");
 		}
 	}
 	
@@ -0,0 +1,387 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/*
+ * On-disk record of files that were clean (had no duplicates left) at the end of a run, so that a later run over the same tree can
+ * skip them. For every path it keeps the size, modification time and a content hash of the file as the run left it.
+ *
+ * The file is a header followed by fixed size records of four longs (path hash, size, modification time in nanoseconds, content
+ * hash) and is loaded straight into an open addressing table of primitive arrays, so millions of entries load in milliseconds. A
+ * slot of the table takes 33 bytes, and as the table is a power of two at most half full an entry takes 66 to 132 bytes. Paths are
+ * only stored as 64-bit hashes. While a run is going every new record is also appended to a journal
+ * next to the manifest, and the next load replays it, so the work of an interrupted run is not lost. save() writes the merged table
+ * atomically and removes the journal. Methods are synchronized so workers of a parallel run can share one instance.
+ */
+public final class Manifest {
+
+	private static final int MAGIC = 0x45444D46; // "EDMF"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_SIZE = 32;
+	private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+	private final Path file;
+	private final Path journalFile;
+	private DataOutputStream journal;
+
+	// Open addressing table keyed by path hash (0 marks a free slot), with the values in parallel arrays
+	private long[] keys;
+	private long[] sizes;
+	private long[] modified;
+	private long[] hashes;
+	private boolean[] seen;
+	private int count;
+
+	private Manifest(Path file, int capacity)
+	{
+		this.file = file;
+		this.journalFile = file.resolveSibling(file.getFileName() + ".journal");
+		allocate(capacity);
+	}
+
+	/*
+	 * Utility method that loads the manifest stored at file together with the journal of an interrupted run, if any. A missing
+	 * manifest gives an empty one, and a torn record at the end of the journal is ignored.
+	 */
+	public static Manifest load(Path file) throws IOException
+	{
+		long records = Files.exists(file) ? (Files.size(file) - HEADER_SIZE) / RECORD_SIZE : 0;
+		Manifest manifest = new Manifest(file, (int) Math.max(16, Math.min(records * 2, 1 << 30)));
+		manifest.replay(file);
+		manifest.replay(manifest.journalFile);
+		return manifest;
+	}
+
+	/*
+	 * Returns true if the file is exactly as a previous run left it: same size and modification time as recorded (then the file is
+	 * not even opened), or same size and the same content hash (then only its new modification time is recorded).
+	 */
+	public boolean isClean(Path path, BasicFileAttributes attrs) throws IOException
+	{
+		long key = key(path);
+		long time = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+		long hash;
+		synchronized (this)
+		{
+			int slot = find(key);
+			if (keys[slot] == 0 || sizes[slot] != attrs.size())
+			{
+				return false;
+			}
+			seen[slot] = true;
+			if (modified[slot] == time)
+			{
+				return true;
+			}
+			hash = hashes[slot];
+		}
+		// the file was touched, hash it (outside the lock, other workers keep going) to see whether the content changed
+		if (contentHash(path) != hash)
+		{
+			return false;
+		}
+		synchronized (this)
+		{
+			put(key, attrs.size(), time, hash, true);
+		}
+		return true;
+	}
+
+	// Records a file as clean as it is now on disk
+	public void recordClean(Path path) throws IOException
+	{
+		recordClean(path, Files.readAttributes(path, BasicFileAttributes.class), contentHash(path));
+	}
+
+	/*
+	 * The same with the attributes and content hash of the file at hand, as they are after the file has been processed (the hash
+	 * taken from the bytes that went by, see ContentHash), so that the file is not read again
+	 */
+	public synchronized void recordClean(Path path, BasicFileAttributes attrs, long hash) throws IOException
+	{
+		put(key(path), attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), hash, true);
+	}
+
+	/*
+	 * Writes the manifest to a temporary file that atomically replaces the old one, then removes the journal. With pruneUnseen the
+	 * entries of files that this run did not come across (deleted or moved files) are dropped.
+	 */
+	public synchronized void save(boolean pruneUnseen) throws IOException
+	{
+		closeJournal();
+		Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			writeHeader(out);
+			for (int slot = 0; slot < keys.length; slot++)
+			{
+				if (keys[slot] != 0 && (seen[slot] || !pruneUnseen))
+				{
+					writeRecord(out, keys[slot], sizes[slot], modified[slot], hashes[slot]);
+				}
+			}
+			out.flush();
+			channel.force(true);
+		}
+		try
+		{
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.deleteIfExists(journalFile);
+	}
+
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	/*
+	 * Utility method that computes a 64-bit content hash of a file: CRC32C and CRC32 of the bytes side by side (both are hardware
+	 * accelerated, and together they make an accidental match after an edit that keeps the size practically impossible).
+	 */
+	public static long contentHash(Path path) throws IOException
+	{
+		ContentHash hash = new ContentHash();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			while (channel.read(buffer) != -1)
+			{
+				buffer.flip();
+				hash.update(buffer);
+				buffer.clear();
+			}
+		}
+		return hash.value();
+	}
+
+	// The hash of contentHash taken from the bytes of a file as they go by, in order, e.g. while the file is read or written anyway
+	public static final class ContentHash {
+
+		private final CRC32C crc32c = new CRC32C();
+		private final CRC32 crc32 = new CRC32();
+
+		public void update(int b)
+		{
+			crc32c.update(b);
+			crc32.update(b);
+		}
+
+		public void update(byte[] b, int off, int len)
+		{
+			crc32c.update(b, off, len);
+			crc32.update(b, off, len);
+		}
+
+		// Takes the bytes between the position and the limit of a buffer, which are left where they are
+		public void update(ByteBuffer bytes)
+		{
+			crc32c.update(bytes.duplicate());
+			crc32.update(bytes.duplicate());
+		}
+
+		public long value()
+		{
+			return (crc32c.getValue() << 32) | crc32.getValue();
+		}
+	}
+
+	// Helper method that reads the records of a manifest or journal file into the table
+	private void replay(Path source) throws IOException
+	{
+		if (!Files.exists(source))
+		{
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+		{
+			long length = channel.size();
+			if (length < HEADER_SIZE)
+			{
+				return;
+			}
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+			{
+				throw new IOException("Not a manifest file: " + source);
+			}
+			while (in.remaining() >= RECORD_SIZE)
+			{
+				put(in.getLong(), in.getLong(), in.getLong(), in.getLong(), false);
+			}
+		}
+	}
+
+	/*
+	 * Helper method that adds or replaces an entry. Entries from the current run (as opposed to ones being loaded) are marked as seen
+	 * and appended to the journal.
+	 */
+	private void put(long key, long size, long time, long hash, boolean current) throws IOException
+	{
+		int slot = find(key);
+		if (keys[slot] == 0)
+		{
+			if ((count + 1) * 2 > keys.length)
+			{
+				rehash();
+				slot = find(key);
+			}
+			keys[slot] = key;
+			count++;
+		}
+		sizes[slot] = size;
+		modified[slot] = time;
+		hashes[slot] = hash;
+		if (current)
+		{
+			seen[slot] = true;
+			appendToJournal(key, size, time, hash);
+		}
+	}
+
+	private void appendToJournal(long key, long size, long time, long hash) throws IOException
+	{
+		if (journal == null)
+		{
+			FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			// a killed run may have left a torn record at the end, which is cut off so that the new records line up again
+			long length = channel.size();
+			long whole = length < HEADER_SIZE ? 0 : length - (length - HEADER_SIZE) % RECORD_SIZE;
+			channel.truncate(whole);
+			channel.position(whole);
+			journal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 12));
+			if (whole == 0)
+			{
+				writeHeader(journal);
+			}
+		}
+		writeRecord(journal, key, size, time, hash);
+		// hand every record to the OS right away so it survives the process being killed
+		journal.flush();
+	}
+
+	private void closeJournal() throws IOException
+	{
+		if (journal != null)
+		{
+			journal.close();
+			journal = null;
+		}
+	}
+
+	private static void writeHeader(DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	private static void writeRecord(DataOutputStream out, long key, long size, long time, long hash) throws IOException
+	{
+		out.writeLong(key);
+		out.writeLong(size);
+		out.writeLong(time);
+		out.writeLong(hash);
+	}
+
+	// Helper method that returns the slot holding key, or the free slot where it would go
+	private int find(long key)
+	{
+		int mask = keys.length - 1;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		while (keys[slot] != 0 && keys[slot] != key)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void allocate(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+		keys = new long[size];
+		sizes = new long[size];
+		modified = new long[size];
+		hashes = new long[size];
+		seen = new boolean[size];
+	}
+
+	private void rehash()
+	{
+		long[] oldKeys = keys;
+		long[] oldSizes = sizes;
+		long[] oldModified = modified;
+		long[] oldHashes = hashes;
+		boolean[] oldSeen = seen;
+		allocate(oldKeys.length * 2);
+		for (int k = 0; k < oldKeys.length; k++)
+		{
+			if (oldKeys[k] != 0)
+			{
+				int slot = find(oldKeys[k]);
+				keys[slot] = oldKeys[k];
+				sizes[slot] = oldSizes[k];
+				modified[slot] = oldModified[k];
+				hashes[slot] = oldHashes[k];
+				seen[slot] = oldSeen[k];
+			}
+		}
+	}
+
+	// Helper method that hashes the absolute, normalized form of a path to 64 bits (FNV-1a followed by a final avalanche step)
+	static long key(Path path)
+	{
+		String name = path.toAbsolutePath().normalize().toString();
+		long h = 0xcbf29ce484222325L;
+		for (int k = 0; k < name.length(); k++)
+		{
+			h ^= name.charAt(k);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+}
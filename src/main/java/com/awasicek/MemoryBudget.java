@@ -0,0 +1,68 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.util.concurrent.Semaphore;
+
+/*
+ * Bytes of heap that the files being processed at the same time may take up together. A worker takes what its file needs before it
+ * reads it and blocks until enough has been given back when there is not, instead of allocating it anyway. Waiting workers are
+ * served in order, so a big file is not starved by a stream of small ones that would each fit; a file needing more than the whole
+ * budget waits until it has the budget to itself. Kept in units of a KB so that budgets up to terabytes fit a Semaphore.
+ */
+public final class MemoryBudget {
+
+	private static final int UNIT = 1024;
+
+	private final long total;
+	private final int units;
+	private final Semaphore free;
+
+	public MemoryBudget(long bytes)
+	{
+		this.units = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / UNIT));
+		this.total = (long) units * UNIT;
+		this.free = new Semaphore(units, true);
+	}
+
+	public long total()
+	{
+		return total;
+	}
+
+	// Bytes currently taken
+	public long inUse()
+	{
+		return (long) (units - free.availablePermits()) * UNIT;
+	}
+
+	// Blocks until the bytes (or the whole budget if they are more) are free and takes them, returns what to hand to release
+	public int acquire(long bytes)
+	{
+		int n = (int) Math.min(units, Math.max(1, (bytes + UNIT - 1) / UNIT));
+		free.acquireUninterruptibly(n);
+		return n;
+	}
+
+	public void release(int taken)
+	{
+		free.release(taken);
+	}
+}
@@ -0,0 +1,583 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters, phase timings and a per-file latency histogram for a run, shared by all worker threads. Memory stays the same however
+ * many files a run goes through: every figure is a counter, and only the first reportLimit paths of each kind are kept for the end
+ * report. The per-file detail is not kept at all but streamed as one JSON object per line to the report file (if one was asked for
+ * with --report), and a Prometheus text file summary of the run can be written at the end (--metrics, for the node_exporter
+ * textfile collector).
+ */
+public final class RunMetrics {
+
+	// Most paths of each kind that are kept for the end report (the counts are always exact, only the listing is cut short)
+	public static int reportLimit = Integer.getInteger("elimdups.reportLimit", 100);
+
+	// Paths kept for the end report: files that were processed, directories searched and files that could not be processed
+	public static final PathSample processedFiles = new PathSample();
+	public static final PathSample directories = new PathSample();
+	public static final PathSample failedFiles = new PathSample();
+
+	private static final LongAdder changed = new LongAdder();
+	private static final LongAdder clean = new LongAdder();
+	private static final LongAdder skipped = new LongAdder();
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder duplicates = new LongAdder();
+	private static final LongAdder walkNanos = new LongAdder();
+	private static final LongAdder readNanos = new LongAdder();
+	private static final LongAdder scanNanos = new LongAdder();
+	private static final LongAdder writeNanos = new LongAdder();
+
+	// Upper bounds (in seconds) of the per-file latency histogram buckets, the last bucket takes everything above them
+	static final double[] LATENCY_BOUNDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+			2.5, 5, 10, 30, 60 };
+	private static final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+	private static final LongAdder latencyNanos = new LongAdder();
+
+	private static long runStart = System.nanoTime();
+	private static volatile Writer report = null;
+
+	private RunMetrics()
+	{
+	}
+
+	/*
+	 * Per-file figures gathered while a file is processed. One is created per file by FileUtil.elimDups, filled in by the thread
+	 * working on the file and handed to fileDone at the end.
+	 */
+	public static final class FileStats {
+		final Path path;
+		final long start = System.nanoTime();
+		long bytesIn;
+		long bytesOut;
+		long duplicates;
+		long readNanos;
+		long scanNanos;
+		long writeNanos;
+		// Offset of the first duplicate an audit found, -1 if there was none (or the file was not audited)
+		long firstDuplicate = -1;
+		// Number of (hard) links to the file, 0 until it is read (see FileUtil.elimDups)
+		int links;
+		// Hashes of the bytes read from the file and of those written to it, for the manifest (null when there is none)
+		Manifest.ContentHash readHash;
+		Manifest.ContentHash writtenHash;
+		// Flight recorder event of the file, begun with it (null if there is no recorder, see FlightEvents)
+		final FlightEvents.File event = FlightEvents.file();
+
+		FileStats(Path path)
+		{
+			this.path = path;
+			if (event != null)
+			{
+				event.begin();
+			}
+		}
+	}
+
+	// Utility method that clears all figures and starts timing a new run
+	public static void reset()
+	{
+		FlightEvents.register();
+		processedFiles.clear();
+		directories.clear();
+		failedFiles.clear();
+		for (LongAdder counter : counters())
+		{
+			counter.reset();
+		}
+		for (int k = 0; k < latencyBuckets.length(); k++)
+		{
+			latencyBuckets.set(k, 0);
+		}
+		runStart = System.nanoTime();
+	}
+
+	// Utility method that starts streaming the per-file report to file
+	public static synchronized void openReport(Path file) throws IOException
+	{
+		openReport(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+	}
+
+	// The same for a report that goes elsewhere (a worker of a sharded run sends it on to its coordinator)
+	static synchronized void openReport(Writer out) throws IOException
+	{
+		closeReport();
+		report = out;
+	}
+
+	private static LongAdder[] counters()
+	{
+		return new LongAdder[] { changed, clean, skipped, bytesIn, bytesOut, duplicates, walkNanos, readNanos, scanNanos, writeNanos,
+				latencyNanos };
+	}
+
+	/*
+	 * Utility methods that carry the figures over from a worker of a sharded run to its coordinator (see Coordinator): the worker
+	 * writes everything it counted since its last reset, and the coordinator adds that to its own figures.
+	 */
+	static void writeTo(DataOutput out) throws IOException
+	{
+		for (LongAdder counter : counters())
+		{
+			out.writeLong(counter.sum());
+		}
+		for (int k = 0; k < latencyBuckets.length(); k++)
+		{
+			out.writeLong(latencyBuckets.get(k));
+		}
+		processedFiles.writeTo(out);
+		directories.writeTo(out);
+		failedFiles.writeTo(out);
+	}
+
+	static void mergeFrom(DataInput in) throws IOException
+	{
+		for (LongAdder counter : counters())
+		{
+			counter.add(in.readLong());
+		}
+		for (int k = 0; k < latencyBuckets.length(); k++)
+		{
+			latencyBuckets.addAndGet(k, in.readLong());
+		}
+		processedFiles.mergeFrom(in);
+		directories.mergeFrom(in);
+		failedFiles.mergeFrom(in);
+	}
+
+	// Records a file that was processed (changed or not)
+	static void fileDone(FileStats stats, boolean fileChanged)
+	{
+		(fileChanged ? changed : clean).increment();
+		bytesIn.add(stats.bytesIn);
+		bytesOut.add(stats.bytesOut);
+		duplicates.add(stats.duplicates);
+		readNanos.add(stats.readNanos);
+		scanNanos.add(stats.scanNanos);
+		writeNanos.add(stats.writeNanos);
+		processedFiles.add(stats.path);
+		long latency = recordLatency(stats);
+		recordEvent(stats, !fileChanged ? "clean" : stats.firstDuplicate >= 0 ? "duplicates" : "changed");
+		if (report != null)
+		{
+			String audited = stats.firstDuplicate >= 0 ? ",\"first_duplicate\":" + stats.firstDuplicate : "";
+			writeLine("{\"path\":" + quote(stats.path.toString()) + ",\"status\":\"" + (fileChanged ? "changed" : "clean") + "\""
+					+ audited + ",\"bytes_in\":" + stats.bytesIn + ",\"bytes_out\":" + stats.bytesOut + ",\"duplicates\":" + stats.duplicates
+					+ ",\"read_seconds\":" + seconds(stats.readNanos) + ",\"scan_seconds\":" + seconds(stats.scanNanos)
+					+ ",\"write_seconds\":" + seconds(stats.writeNanos) + ",\"seconds\":" + seconds(latency) + "}");
+		}
+	}
+
+	// Records a file that was skipped because an earlier run left it clean and it has not changed since
+	static void fileSkipped(FileStats stats)
+	{
+		skipped.increment();
+		long latency = recordLatency(stats);
+		recordEvent(stats, "skipped");
+		if (report != null)
+		{
+			writeLine("{\"path\":" + quote(stats.path.toString()) + ",\"status\":\"skipped\",\"seconds\":" + seconds(latency) + "}");
+		}
+	}
+
+	// Records a file that could not be processed
+	static void fileFailed(Path path, Exception e)
+	{
+		failedFiles.add(path);
+		FlightEvents.File event = FlightEvents.file();
+		if (event != null && event.shouldCommit())
+		{
+			event.path = path.toString();
+			event.outcome = "failed";
+			event.commit();
+		}
+		if (report != null)
+		{
+			writeLine("{\"path\":" + quote(path.toString()) + ",\"status\":\"failed\",\"error\":" + quote(String.valueOf(e)) + "}");
+		}
+	}
+
+	// Helper method that ends the flight recorder event of a file and commits it if it is being recorded
+	private static void recordEvent(FileStats stats, String outcome)
+	{
+		FlightEvents.File event = stats.event;
+		if (event == null)
+		{
+			return;
+		}
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.path = stats.path.toString();
+			event.outcome = outcome;
+			event.bytesIn = stats.bytesIn;
+			event.bytesOut = stats.bytesOut;
+			event.duplicates = stats.duplicates;
+			event.readTime = stats.readNanos;
+			event.scanTime = stats.scanNanos;
+			event.writeTime = stats.writeNanos;
+			event.commit();
+		}
+	}
+
+	static void directoryFound(Path path)
+	{
+		directories.add(path);
+	}
+
+	// Adds time the walking thread spent finding files (as opposed to handing them to elimDups)
+	static void addWalkNanos(long nanos)
+	{
+		walkNanos.add(nanos);
+	}
+
+	public static long changedCount()
+	{
+		return changed.sum();
+	}
+
+	public static long cleanCount()
+	{
+		return clean.sum();
+	}
+
+	public static long skippedCount()
+	{
+		return skipped.sum();
+	}
+
+	public static long failedCount()
+	{
+		return failedFiles.count();
+	}
+
+	public static long bytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	public static long bytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	public static long duplicatesRemoved()
+	{
+		return duplicates.sum();
+	}
+
+	public static double runSeconds()
+	{
+		return seconds(System.nanoTime() - runStart);
+	}
+
+	/*
+	 * Utility method that estimates a latency percentile (q between 0 and 1) from the histogram, as the upper bound of the bucket it
+	 * falls in. Returns 0 if no file was timed, and infinity if it falls above the last bound.
+	 */
+	public static double latencyPercentile(double q)
+	{
+		long total = 0;
+		for (int k = 0; k < latencyBuckets.length(); k++)
+		{
+			total += latencyBuckets.get(k);
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int k = 0; k < LATENCY_BOUNDS.length; k++)
+		{
+			seen += latencyBuckets.get(k);
+			if (seen >= rank)
+			{
+				return LATENCY_BOUNDS[k];
+			}
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/*
+	 * Utility method that ends a run: writes a summary line to the report and closes it, and writes the Prometheus summary to
+	 * metricsFile unless that is null. Failures are reported but do not stop the program.
+	 */
+	public static void finish(Path metricsFile)
+	{
+		if (report != null)
+		{
+			writeLine("{\"summary\":true,\"files_changed\":" + changedCount() + ",\"files_clean\":" + cleanCount()
+					+ ",\"files_skipped\":" + skippedCount() + ",\"files_failed\":" + failedCount() + ",\"directories\":"
+					+ directories.count() + ",\"bytes_in\":" + bytesIn() + ",\"bytes_out\":" + bytesOut() + ",\"duplicates\":"
+					+ duplicatesRemoved() + ",\"walk_seconds\":" + seconds(walkNanos.sum()) + ",\"read_seconds\":"
+					+ seconds(readNanos.sum()) + ",\"scan_seconds\":" + seconds(scanNanos.sum()) + ",\"write_seconds\":"
+					+ seconds(writeNanos.sum()) + ",\"seconds\":" + runSeconds() + "}");
+			try
+			{
+				closeReport();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Failed to write report file. " + e);
+			}
+		}
+		if (metricsFile != null)
+		{
+			try
+			{
+				writePrometheus(metricsFile);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Failed to write metrics file. " + e);
+			}
+		}
+	}
+
+	/*
+	 * Utility method that writes the figures of the run in the Prometheus text format. The file is written next to its final name and
+	 * renamed over it, so a collector reading it never sees half of it.
+	 */
+	public static void writePrometheus(Path file) throws IOException
+	{
+		Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try
+		{
+			try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+			{
+				out.write("# HELP elimdups_files_total Files looked at by the last run, by outcome.\n");
+				out.write("# TYPE elimdups_files_total counter\n");
+				out.write("elimdups_files_total{status=\"changed\"} " + changedCount() + "\n");
+				out.write("elimdups_files_total{status=\"clean\"} " + cleanCount() + "\n");
+				out.write("elimdups_files_total{status=\"skipped\"} " + skippedCount() + "\n");
+				out.write("elimdups_files_total{status=\"failed\"} " + failedCount() + "\n");
+				out.write("# HELP elimdups_directories_total Directories searched by the last run.\n");
+				out.write("# TYPE elimdups_directories_total counter\n");
+				out.write("elimdups_directories_total " + directories.count() + "\n");
+				out.write("# HELP elimdups_bytes_read_total Bytes of the files processed by the last run.\n");
+				out.write("# TYPE elimdups_bytes_read_total counter\n");
+				out.write("elimdups_bytes_read_total " + bytesIn() + "\n");
+				out.write("# HELP elimdups_bytes_written_total Bytes of the files after processing.\n");
+				out.write("# TYPE elimdups_bytes_written_total counter\n");
+				out.write("elimdups_bytes_written_total " + bytesOut() + "\n");
+				out.write("# HELP elimdups_duplicates_removed_total Duplicate words removed by the last run.\n");
+				out.write("# TYPE elimdups_duplicates_removed_total counter\n");
+				out.write("elimdups_duplicates_removed_total " + duplicatesRemoved() + "\n");
+				out.write("# HELP elimdups_phase_seconds_total Time spent in each phase, summed over all threads.\n");
+				out.write("# TYPE elimdups_phase_seconds_total counter\n");
+				out.write("elimdups_phase_seconds_total{phase=\"walk\"} " + seconds(walkNanos.sum()) + "\n");
+				out.write("elimdups_phase_seconds_total{phase=\"read\"} " + seconds(readNanos.sum()) + "\n");
+				out.write("elimdups_phase_seconds_total{phase=\"scan\"} " + seconds(scanNanos.sum()) + "\n");
+				out.write("elimdups_phase_seconds_total{phase=\"write\"} " + seconds(writeNanos.sum()) + "\n");
+				out.write("# HELP elimdups_file_duration_seconds Time taken per file.\n");
+				out.write("# TYPE elimdups_file_duration_seconds histogram\n");
+				long cumulative = 0;
+				for (int k = 0; k < LATENCY_BOUNDS.length; k++)
+				{
+					cumulative += latencyBuckets.get(k);
+					out.write("elimdups_file_duration_seconds_bucket{le=\"" + LATENCY_BOUNDS[k] + "\"} " + cumulative + "\n");
+				}
+				cumulative += latencyBuckets.get(LATENCY_BOUNDS.length);
+				out.write("elimdups_file_duration_seconds_bucket{le=\"+Inf\"} " + cumulative + "\n");
+				out.write("elimdups_file_duration_seconds_sum " + seconds(latencyNanos.sum()) + "\n");
+				out.write("elimdups_file_duration_seconds_count " + cumulative + "\n");
+				out.write("# HELP elimdups_run_duration_seconds Wall clock time of the last run.\n");
+				out.write("# TYPE elimdups_run_duration_seconds gauge\n");
+				out.write("elimdups_run_duration_seconds " + runSeconds() + "\n");
+				out.write("# HELP elimdups_last_run_timestamp_seconds When the last run ended.\n");
+				out.write("# TYPE elimdups_last_run_timestamp_seconds gauge\n");
+				out.write("elimdups_last_run_timestamp_seconds " + System.currentTimeMillis() / 1000 + "\n");
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	// Helper method that puts the latency of a file into its histogram bucket and returns it
+	private static long recordLatency(FileStats stats)
+	{
+		long latency = System.nanoTime() - stats.start;
+		double s = seconds(latency);
+		int bucket = 0;
+		while (bucket < LATENCY_BOUNDS.length && s > LATENCY_BOUNDS[bucket])
+		{
+			bucket++;
+		}
+		latencyBuckets.incrementAndGet(bucket);
+		latencyNanos.add(latency);
+		return latency;
+	}
+
+	// Helper method that appends a line to the report (a report that fails part way through is closed, the run goes on without it)
+	static synchronized void writeLine(String line)
+	{
+		if (report == null)
+		{
+			return;
+		}
+		try
+		{
+			report.write(line);
+			report.write('\n');
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to write report file, no further files will be reported. " + e);
+			try
+			{
+				closeReport();
+			}
+			catch (IOException ignored)
+			{
+				// already reported
+			}
+		}
+	}
+
+	private static synchronized void closeReport() throws IOException
+	{
+		if (report != null)
+		{
+			Writer out = report;
+			report = null;
+			out.close();
+		}
+	}
+
+	private static double seconds(long nanos)
+	{
+		return nanos / 1e9;
+	}
+
+	// Helper method that turns a string into a JSON string literal
+	static String quote(String s)
+	{
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int k = 0; k < s.length(); k++)
+		{
+			char c = s.charAt(k);
+			if (c == '"' || c == '\\')
+			{
+				sb.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				sb.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/*
+	 * The first reportLimit paths added and the number of paths added in all. Adding is safe from any thread and costs the same
+	 * however many paths have been added.
+	 */
+	public static final class PathSample {
+		private final List<Path> paths = new ArrayList<Path>();
+		private final AtomicLong count = new AtomicLong();
+
+		void add(Path path)
+		{
+			if (count.incrementAndGet() <= reportLimit)
+			{
+				synchronized (paths)
+				{
+					paths.add(path);
+				}
+			}
+		}
+
+		public long count()
+		{
+			return count.get();
+		}
+
+		public boolean isEmpty()
+		{
+			return count() == 0;
+		}
+
+		// Returns a copy of the paths that were kept
+		public List<Path> paths()
+		{
+			synchronized (paths)
+			{
+				return new ArrayList<Path>(paths);
+			}
+		}
+
+		void writeTo(DataOutput out) throws IOException
+		{
+			List<Path> kept = paths();
+			out.writeInt(kept.size());
+			for (Path path : kept)
+			{
+				out.writeUTF(path.toString());
+			}
+			out.writeLong(count());
+		}
+
+		// Adds the paths written by writeTo (keeping as many as there is room for) and their count
+		void mergeFrom(DataInput in) throws IOException
+		{
+			int kept = in.readInt();
+			for (int k = 0; k < kept; k++)
+			{
+				add(Paths.get(in.readUTF()));
+			}
+			count.addAndGet(in.readLong() - kept);
+		}
+
+		void clear()
+		{
+			synchronized (paths)
+			{
+				paths.clear();
+			}
+			count.set(0);
+		}
+	}
+}
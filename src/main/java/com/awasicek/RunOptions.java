@@ -0,0 +1,336 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ * Options of a run as given on the command line. Options that used to be system properties (-Delimdups.threads and so on) still
+ * are, and give the defaults here. Without --batch or --interactive the program asks its questions and shows its "graphics" only
+ * when it runs in a terminal, so it runs straight through under cron, CI or a pipe.
+ */
+public final class RunOptions {
+
+	// Exit codes of the program
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_FAILED_FILES = 1;
+	public static final int EXIT_USAGE = 2;
+
+	public static final String USAGE = "Usage: elimdups [options] <file or directory>...\n"
+			+ "       elimdups [options] -\n"
+			+ "Eliminates duplicate words from text files, and from the text files in directories and their subdirectories.\n"
+			+ "With - it reads standard input and writes it to standard output without the duplicates, as the text comes in.\n"
+			+ "  -e, --ext EXT[,EXT...]   extensions of the files to process (default txt, can be repeated)\n"
+			+ "  -i, --include GLOB       only process files whose path below the directory matches (can be repeated)\n"
+			+ "  -x, --exclude GLOB       skip files and directories whose path below the directory matches (can be repeated)\n"
+			+ "                           (a glob without a '/' is matched against the file or directory name)\n"
+			+ "  -c, --charset NAME       encoding of the files (default UTF-8, which is scanned without decoding)\n"
+			+ "  -t, --threads N          number of files processed at the same time (default 1)\n"
+			+ "  -p, --processes N        split directories into shards and process them in N worker JVMs (default 1, this one)\n"
+			+ "  -m, --memory SIZE        heap that the files processed at the same time may take up together, e.g. 512m or 2g\n"
+			+ "                           (default half the maximum heap, bigger files are streamed and workers wait for room)\n"
+			+ "      --cache SIZE         keep up to SIZE of results by file content, so that copies of a file are not scanned again\n"
+			+ "  -z, --gzip               also process gzip compressed text files (e.g. a.txt.gz), without decompressing them to disk\n"
+			+ "      --gzip-level N       compression level of rewritten gzip files, 1 (fastest) to 9 (smallest) (default 6)\n"
+			+ "      --audit[=count]      only report the files that have duplicates and where the first one is, reading each file\n"
+			+ "                           up to it (=count reads them to the end and counts them), and never write anything\n"
+			+ "      --in-place           write changes into the files themselves from the first duplicate on, instead of replacing\n"
+			+ "                           them with a rewritten copy (far less writing, but a crash part way leaves a file half done)\n"
+			+ "  -w, --watch              keep running and process files in the directories as they are written (until stopped)\n"
+			+ "      --debounce MS        with --watch, process a file once it has not been written to for MS milliseconds (default 20)\n"
+			+ "  -q, --quiet              print nothing but errors\n"
+			+ "  -b, --batch              never prompt and skip the special effects\n"
+			+ "      --interactive        prompt before starting and show the special effects\n"
+			+ "      --manifest FILE      skip files that an earlier run with the same manifest left clean\n"
+			+ "      --report FILE        write one JSON line per file to FILE\n"
+			+ "      --metrics FILE       write a Prometheus text file summary of the run to FILE\n"
+			+ "  -h, --help               print this help\n"
+			+ "Exit status: 0 if every file was processed, 1 if some files could not be processed, 2 on a usage error.";
+
+	public final List<Path> roots = new ArrayList<Path>();
+	public final Set<String> extensions = new LinkedHashSet<String>();
+	public final List<String> includes = new ArrayList<String>();
+	public final List<String> excludes = new ArrayList<String>();
+	public Charset charset = FileUtil.charset;
+	public int threads = FileUtil.threads;
+	public long memory = FileUtil.memoryBudget;
+	public long cache = FileUtil.resultCacheBytes;
+	public boolean inPlace = FileUtil.inPlace;
+	public boolean audit = FileUtil.audit;
+	public boolean auditCounts = FileUtil.auditCounts;
+	public boolean gzip = FileUtil.gzip;
+	public int gzipLevel = FileUtil.gzipLevel;
+	public int processes = 1;
+	// Port of the coordinator to work for, when this process is a worker of a sharded run (--worker, see Coordinator)
+	public int worker = 0;
+	// The command line arguments as given, which the workers of a sharded run are started with
+	public final List<String> args = new ArrayList<String>();
+	public boolean watch = false;
+	public long debounce = 20;
+	public boolean quiet = false;
+	public boolean interactive = System.console() != null;
+	public boolean help = false;
+	// Filter standard input to standard output (a - on the command line) instead of rewriting files
+	public boolean filter = false;
+	public Path manifest = pathProperty("elimdups.manifest");
+	public Path report = pathProperty("elimdups.report");
+	public Path metrics = pathProperty("elimdups.metrics");
+
+	/*
+	 * Utility method that reads the command line arguments. Throws IllegalArgumentException with a message for the user if they do not
+	 * make sense (checking that the files and directories exist is left to VerificationUtil).
+	 */
+	public static RunOptions parse(String[] args)
+	{
+		RunOptions options = new RunOptions();
+		options.args.addAll(Arrays.asList(args));
+		boolean onlyRoots = false;
+		for (int k = 0; k < args.length; k++)
+		{
+			String arg = args[k];
+			if (!onlyRoots && arg.equals("-"))
+			{
+				options.filter = true;
+				continue;
+			}
+			if (onlyRoots || !arg.startsWith("-"))
+			{
+				options.roots.add(Paths.get(arg));
+				continue;
+			}
+			// --option=value is the same as --option value
+			String value = null;
+			int equals = arg.indexOf('=');
+			if (arg.startsWith("--") && equals > 0)
+			{
+				value = arg.substring(equals + 1);
+				arg = arg.substring(0, equals);
+			}
+			switch (arg)
+			{
+			case "--":
+				onlyRoots = true;
+				break;
+			case "-e":
+			case "--ext":
+				for (String ext : (value != null ? value : next(args, ++k, arg)).split(","))
+				{
+					ext = ext.trim();
+					ext = ext.startsWith(".") ? ext.substring(1) : ext;
+					if (!ext.isEmpty())
+					{
+						options.extensions.add(ext);
+					}
+				}
+				break;
+			case "-i":
+			case "--include":
+				options.includes.add(value != null ? value : next(args, ++k, arg));
+				break;
+			case "-x":
+			case "--exclude":
+				options.excludes.add(value != null ? value : next(args, ++k, arg));
+				break;
+			case "-c":
+			case "--charset":
+				options.charset = charset(value != null ? value : next(args, ++k, arg));
+				break;
+			case "-t":
+			case "--threads":
+				options.threads = positive(value != null ? value : next(args, ++k, arg), arg);
+				break;
+			case "-p":
+			case "--processes":
+				options.processes = positive(value != null ? value : next(args, ++k, arg), arg);
+				break;
+			case "--worker":
+				options.worker = positive(value != null ? value : next(args, ++k, arg), arg);
+				break;
+			case "-m":
+			case "--memory":
+				options.memory = size(value != null ? value : next(args, ++k, arg), arg);
+				break;
+			case "--cache":
+				options.cache = size(value != null ? value : next(args, ++k, arg), arg);
+				break;
+			case "-z":
+			case "--gzip":
+				options.gzip = true;
+				break;
+			case "--gzip-level":
+				options.gzipLevel = positive(value != null ? value : next(args, ++k, arg), arg);
+				if (options.gzipLevel > 9)
+				{
+					throw new IllegalArgumentException(arg + " needs a level from 1 to 9, not " + options.gzipLevel);
+				}
+				break;
+			case "--audit":
+				options.audit = true;
+				if (value != null && !value.equals("exists"))
+				{
+					if (!value.equals("count"))
+					{
+						throw new IllegalArgumentException(arg + " takes exists or count, not " + value);
+					}
+					options.auditCounts = true;
+				}
+				break;
+			case "--in-place":
+				options.inPlace = true;
+				break;
+			case "-w":
+			case "--watch":
+				options.watch = true;
+				break;
+			case "--debounce":
+				options.debounce = positive(value != null ? value : next(args, ++k, arg), arg);
+				break;
+			case "-q":
+			case "--quiet":
+				options.quiet = true;
+				break;
+			case "-b":
+			case "--batch":
+				options.interactive = false;
+				break;
+			case "--interactive":
+				options.interactive = true;
+				break;
+			case "--manifest":
+				options.manifest = Paths.get(value != null ? value : next(args, ++k, arg));
+				break;
+			case "--report":
+				options.report = Paths.get(value != null ? value : next(args, ++k, arg));
+				break;
+			case "--metrics":
+				options.metrics = Paths.get(value != null ? value : next(args, ++k, arg));
+				break;
+			case "-h":
+			case "--help":
+				options.help = true;
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + arg);
+			}
+		}
+		if (options.extensions.isEmpty())
+		{
+			options.extensions.add("txt");
+		}
+		if (options.filter)
+		{
+			if (!options.roots.isEmpty() || options.watch)
+			{
+				throw new IllegalArgumentException("- (standard input) cannot be combined with files, directories or --watch");
+			}
+			// standard input carries the text and standard output the result, so there is nobody to talk to
+			options.interactive = false;
+			options.quiet = true;
+		}
+		else if (options.roots.isEmpty() && !options.help)
+		{
+			throw new IllegalArgumentException("no file or directory given");
+		}
+		if (options.processes > 1 && (options.filter || options.watch || options.manifest != null))
+		{
+			// the workers could not share a manifest, and standard input or a watch cannot be split into shards
+			throw new IllegalArgumentException("--processes cannot be combined with -, --watch or --manifest");
+		}
+		return options;
+	}
+
+	// Helper method that returns the value following an option
+	private static String next(String[] args, int k, String option)
+	{
+		if (k >= args.length)
+		{
+			throw new IllegalArgumentException(option + " needs a value");
+		}
+		return args[k];
+	}
+
+	private static int positive(String value, String option)
+	{
+		try
+		{
+			int n = Integer.parseInt(value);
+			if (n > 0)
+			{
+				return n;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// reported below
+		}
+		throw new IllegalArgumentException(option + " needs a positive number, not " + value);
+	}
+
+	// Helper method that reads a number of bytes with an optional k, m or g suffix
+	private static long size(String value, String option)
+	{
+		String digits = value.trim().toLowerCase(Locale.ROOT);
+		int shift = 0;
+		if (digits.endsWith("k") || digits.endsWith("m") || digits.endsWith("g"))
+		{
+			shift = "kmg".indexOf(digits.charAt(digits.length() - 1)) * 10 + 10;
+			digits = digits.substring(0, digits.length() - 1);
+		}
+		try
+		{
+			long n = Long.parseLong(digits);
+			if (n > 0 && n <= Long.MAX_VALUE >> shift)
+			{
+				return n << shift;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// reported below
+		}
+		throw new IllegalArgumentException(option + " needs a size such as 512m, not " + value);
+	}
+
+	private static Charset charset(String name)
+	{
+		try
+		{
+			return Charset.forName(name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException("unknown charset " + name);
+		}
+	}
+
+	private static Path pathProperty(String name)
+	{
+		String value = System.getProperty(name);
+		return value == null ? null : Paths.get(value);
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/*
+ * The worker side of a sharded run (see Coordinator): connects to the coordinator, shows it its token, and processes the shards it
+ * is handed one after another until it is told to stop. Everything it would report goes to the coordinator instead.
+ */
+final class ShardWorker {
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	// Shard being processed, for the claims of files with more than one link
+	private int shard;
+
+	private ShardWorker(Socket socket) throws IOException
+	{
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	// Works for the coordinator on port (with FileUtil already set up from the command line) and returns the exit status
+	static int run(RunOptions options)
+	{
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), options.worker))
+		{
+			ShardWorker worker = new ShardWorker(socket);
+			String token = System.getenv(Coordinator.TOKEN_VARIABLE);
+			worker.out.writeUTF(token == null ? "" : token);
+			worker.out.flush();
+			if (options.report != null)
+			{
+				RunMetrics.openReport(worker.new ReportForwarder());
+			}
+			worker.work();
+			return RunOptions.EXIT_OK;
+		}
+		catch (IOException | UncheckedIOException e)
+		{
+			System.err.println("Worker lost its coordinator. " + e);
+			return RunOptions.EXIT_FAILED_FILES;
+		}
+	}
+
+	private void work() throws IOException
+	{
+		while (in.readUnsignedByte() == Coordinator.SHARD)
+		{
+			shard = in.readInt();
+			String root = in.readUTF();
+			String dir = in.readUTF();
+			boolean recursive = in.readBoolean();
+			RunMetrics.reset();
+			FileUtil.searchDirsAndDestroyDups(Paths.get(root), Paths.get(dir), recursive, this::claim);
+			synchronized (out)
+			{
+				out.writeByte(Coordinator.DONE);
+				out.writeInt(shard);
+				RunMetrics.writeTo(out);
+				out.flush();
+			}
+		}
+	}
+
+	// Asks the coordinator whether this worker is the one to process a file with more than one link
+	private boolean claim(Object fileKey)
+	{
+		synchronized (out)
+		{
+			try
+			{
+				out.writeByte(Coordinator.CLAIM);
+				out.writeUTF(fileKey.toString());
+				out.flush();
+				return in.readBoolean();
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// Writer for RunMetrics that sends each line of the report on to the coordinator
+	private final class ReportForwarder extends Writer {
+		private final StringBuilder line = new StringBuilder();
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException
+		{
+			for (int k = off; k < off + len; k++)
+			{
+				if (cbuf[k] != '\n')
+				{
+					line.append(cbuf[k]);
+					continue;
+				}
+				byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+				line.setLength(0);
+				synchronized (out)
+				{
+					out.writeByte(Coordinator.REPORT_LINE);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
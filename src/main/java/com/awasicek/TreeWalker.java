@@ -0,0 +1,200 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/*
+ * Finds the files below a directory that a FileSelector accepts and can process (read and write, read for an audit), and hands
+ * each one over together with the attributes the walk read for it. Every entry costs one stat (which walkFileTree does anyway)
+ * and a file that is selected one access check more (a symbolic link one more stat too); selection only looks at the name, and
+ * excluded directories are not entered at all. The link count processing needs is read later, only where it is needed (see
+ * FileUtil.elimDups). The directories found are counted in RunMetrics.
+ *
+ * With more than one thread each directory is listed by a task of its own and the subdirectories it holds are forked off as new
+ * tasks, so on file systems where listing and stat are slow (network file systems) many requests are in flight at once. The files
+ * are then handed over from the walking threads, in no particular order.
+ */
+public final class TreeWalker {
+
+	private static final Set<FileVisitOption> NO_OPTIONS = Collections.emptySet();
+
+	private final FileSelector selector;
+	private final int threads;
+
+	public TreeWalker(FileSelector selector, int threads)
+	{
+		this.selector = selector;
+		this.threads = threads;
+	}
+
+	/*
+	 * Walks the tree below the root of the selector and hands every file found to found, returning once all of them have been
+	 * handed over. Directories that cannot be read are reported and left out, the walk goes on without them.
+	 */
+	public void walk(BiConsumer<Path, BasicFileAttributes> found) throws IOException
+	{
+		walk(selector.root(), true, found);
+	}
+
+	/*
+	 * The same for a directory below the root of the selector (which globs are still matched relative to), and only for the files
+	 * directly in it unless recursive. A shard of a sharded run (see Coordinator) is walked like this.
+	 */
+	public void walk(Path start, boolean recursive, BiConsumer<Path, BasicFileAttributes> found) throws IOException
+	{
+		if (!recursive || threads <= 1)
+		{
+			Files.walkFileTree(start, NO_OPTIONS, recursive ? Integer.MAX_VALUE : 1, new Visitor(start, found, null));
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try
+		{
+			pool.invoke(new DirectoryTask(start, found));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	// Lists one directory, handing over its files and forking a task for each of its subdirectories
+	private final class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final BiConsumer<Path, BasicFileAttributes> found;
+
+		DirectoryTask(Path dir, BiConsumer<Path, BasicFileAttributes> found)
+		{
+			this.dir = dir;
+			this.found = found;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<DirectoryTask> subdirs = new ArrayList<DirectoryTask>();
+			try
+			{
+				// to a depth of 1 the subdirectories come to visitFile with their attributes instead of being entered
+				Files.walkFileTree(dir, NO_OPTIONS, 1, new Visitor(dir, found, subdirs));
+			}
+			catch (IOException e)
+			{
+				System.err.println("Failed to read directory " + dir + ". " + e);
+			}
+			for (DirectoryTask subdir : subdirs)
+			{
+				subdir.join();
+			}
+		}
+	}
+
+	private final class Visitor extends SimpleFileVisitor<Path> {
+
+		private final Path start;
+		private final BiConsumer<Path, BasicFileAttributes> found;
+		// Where the subdirectories go when each directory is walked by a task of its own (null when the walk goes all the way down)
+		private final List<DirectoryTask> subdirs;
+
+		Visitor(Path start, BiConsumer<Path, BasicFileAttributes> found, List<DirectoryTask> subdirs)
+		{
+			this.start = start;
+			this.found = found;
+			this.subdirs = subdirs;
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+		{
+			if (!dir.equals(start) && selector.isExcluded(dir))
+			{
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			RunMetrics.directoryFound(dir);
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+		{
+			if (attrs.isDirectory())
+			{
+				// only reached walking to a depth of 1, where the subdirectories are left to their own tasks (if there are any)
+				if (subdirs != null && !selector.isExcluded(file))
+				{
+					DirectoryTask task = new DirectoryTask(file, found);
+					task.fork();
+					subdirs.add(task);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			if (!selector.acceptsName(file))
+			{
+				return FileVisitResult.CONTINUE;
+			}
+			if (attrs.isSymbolicLink())
+			{
+				// a link to a file is processed like the file (a link to a directory is not followed)
+				try
+				{
+					attrs = FileAttributes.read(file);
+				}
+				catch (IOException e)
+				{
+					return FileVisitResult.CONTINUE;
+				}
+			}
+			if (attrs.isRegularFile() && selector.canProcess(file))
+			{
+				found.accept(file, attrs);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException e)
+		{
+			// an entry that is gone again is no failure, one that cannot be looked at (e.g. a directory without permission) is
+			if (!(e instanceof NoSuchFileException))
+			{
+				System.err.println("Failed to read " + file + ". " + e);
+			}
+			return FileVisitResult.CONTINUE;
+		}
+	}
+}
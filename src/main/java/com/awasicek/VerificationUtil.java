@@ -20,10 +20,14 @@
 package com.awasicek;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.AccessMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
 
 /*
  * Class providing verification utility methods for the Search and Destroy program.
@@ -34,13 +38,13 @@ public final class VerificationUtil {
 	{
 	}
 
-	// Utility method to verify command line arguments
-	public static void checkCLArguments(String[] args) 
+	/*
+	 * Utility method to verify a file or directory given on the command line: it has to be a directory, or a readable and writable file
+	 * with one of the extensions in FileUtil.extensions. Returns the error message for the user, or null if the argument is fine.
+	 */
+	public static String checkArgument(String commLineArg)
 	{
-		// Verify the correct number of arguments
-		checkNumArgs(args);
-		// Check if it is a directory or if it is a .txt file that exists and is readable and writable
-		dirOrFileCheck(args[0]);
+		return dirOrFileCheck(commLineArg);
 	}
 	
 	// Utility method that tests for a file
@@ -64,19 +68,40 @@ public final class VerificationUtil {
 	
 	// Utility method that tests whether a file has the .txt extension
 	public static boolean isTxtFile(String pathName)
+	{
+		return hasExtension(pathName, Collections.singleton("txt"));
+	}
+	
+	/*
+	 * Utility method that tests whether a file has one of the given extensions, or (with compressed) is such a file compressed with
+	 * gzip, i.e. has one of the extensions followed by .gz
+	 */
+	public static boolean hasExtension(String pathName, Set<String> extensions, boolean compressed)
+	{
+		if (compressed && isGzip(pathName))
+		{
+			pathName = pathName.substring(0, pathName.length() - GZIP_SUFFIX.length());
+		}
+		return hasExtension(pathName, extensions);
+	}
+
+	// Utility method that tests whether a file is named as a gzip file
+	public static boolean isGzip(String pathName)
+	{
+		return pathName.endsWith(GZIP_SUFFIX);
+	}
+
+	private static final String GZIP_SUFFIX = ".gz";
+
+	// Utility method that tests whether a file has one of the given extensions (given without the dot)
+	public static boolean hasExtension(String pathName, Set<String> extensions)
 	{
 		String extension = "";
 		int i = pathName.lastIndexOf(".");
 		if (i >= 0) {
 			extension = pathName.substring(i + 1);
 		}
-		if (extension.equals("txt")) {
-			return true;
-		} 
-		else
-		{
-			return false;
-		}
+		return extensions.contains(extension);
 	}
 	
 	// Utility method that tests whether a file is readable and writable
@@ -92,68 +117,82 @@ public final class VerificationUtil {
 		}
 	}
 	
-	// Overloaded utility method that tests whether a file is readable and writable
+	// Overloaded utility method that tests whether a file is readable and writable (with a single access check)
 	public static boolean canReadAndWrite(Path pathName)
 	{
-		if (Files.isReadable(pathName) && Files.isWritable(pathName)) {
+		try
+		{
+			pathName.getFileSystem().provider().checkAccess(pathName, AccessMode.READ, AccessMode.WRITE);
 			return true;
 		}
-		else
+		catch (IOException e)
 		{
 			return false;
 		}
 	}
 
-	// Helper method that displays an error message and exits the program if the number of arguments is not 1 
-	private static void checkNumArgs(String[] args) {
-		int numArguments = args.length;
-		if (numArguments != 1) {
-			System.err.println(
-					"Error: Search and Destroy v1.0 requires exactly one (1) command line argument specifying the text file or "
-					+ "directory in which to search and destroy duplicate words.");
-			System.exit(1);
+	// Utility method that tests whether a file is readable (with a single access check)
+	public static boolean canRead(Path pathName)
+	{
+		try
+		{
+			pathName.getFileSystem().provider().checkAccess(pathName, AccessMode.READ);
+			return true;
 		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	// Utility method that tests whether a file can be processed: readable for an audit (FileUtil.audit), readable and writable otherwise
+	public static boolean canProcess(Path pathName)
+	{
+		return canProcess(pathName, FileUtil.audit);
+	}
+
+	// Overloaded utility method that tests whether a file can be processed: readable if it is only read, else readable and writable
+	public static boolean canProcess(Path pathName, boolean readOnly)
+	{
+		return readOnly ? canRead(pathName) : canReadAndWrite(pathName);
 	}
 
 	/*
-	 *  Helper method that displays an appropriate error message and exits the program if the argument is not a 
-	 *  directory or a readable/writable text file.
+	 *  Helper method that returns an appropriate error message if the argument is not a directory or a readable/writable text file
+	 *  (null if it is one, and for an audit a readable text file is enough).
 	 */
-	private static void dirOrFileCheck(String commLineArg) {
+	private static String dirOrFileCheck(String commLineArg) {
 		Path argPath = Paths.get(commLineArg);
 		boolean isFile = isFile(commLineArg);
 		boolean isDirectory = isDirectory(argPath);
-		boolean isTxtFile = isTxtFile(commLineArg);
+		boolean isTextFile = hasExtension(commLineArg, FileUtil.extensions, FileUtil.gzip);
 
 		// Check whether the argument provided is an existing directory or file
 		if (!Files.exists(argPath))
 		{
-			System.err.println("Error: the command line argument passed to Search and Destroy v1.0 (" + commLineArg 
-					+ ") is neither a file nor directory that exists.");
-			System.exit(1);
+			return "Error: the command line argument passed to Search and Destroy v1.0 (" + commLineArg 
+					+ ") is neither a file nor directory that exists.";
 		}
 		
 		// Check whether the argument provided is a directory or a file
 		if (!isDirectory && !isFile) {
-			System.err.println("Error: the command line argument passed to Search and Destroy v1.0 (" + commLineArg
-					+ ") was neither a directory nor a file.");
-			System.exit(1);
+			return "Error: the command line argument passed to Search and Destroy v1.0 (" + commLineArg
+					+ ") was neither a directory nor a file.";
 		}
 		
 		// Check if the file provided by the argument is readable and writable (also checks for existence)
-		if(!canReadAndWrite(argPath))
+		if(!canProcess(argPath))
 		{
-			System.err.println("Error: the file provided via command line argument (" + commLineArg
-					+ ") to Search and Destroy v1.0 is not readable and/or writable."); 
-			System.exit(1);
+			return "Error: the file provided via command line argument (" + commLineArg
+					+ ") to Search and Destroy v1.0 is not readable" + (FileUtil.audit ? "." : " and/or writable."); 
 		}
 
-		// Check if the file extension is .txt (also check if it is a file so this doesn't check directories for .txt extension)
-		if (isFile && !isTxtFile)
+		// Check if the file extension is one to process (also check if it is a file so this doesn't check directories for the extension)
+		if (isFile && !isTextFile)
 		{
-			System.err.println("Error: the command line argument passed to Search and Destroy v1.0 (" + commLineArg
-				+ ") was not a valid .txt file.");
-			System.exit(1);
+			return "Error: the command line argument passed to Search and Destroy v1.0 (" + commLineArg
+				+ ") was not a valid ." + String.join("/.", FileUtil.extensions) + " file.";
 		}
+		return null;
 	}
 }
@@ -0,0 +1,410 @@
+/*
+ * Search and Destroy v1.0
+ * @author Andrew Wasicek
+ * Copyright (c) 2018 Andrew Wasicek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * limitations under the License.
+ */
+package com.awasicek;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Long running mode that watches directory trees and eliminates duplicates from files as they are written, instead of walking the
+ * whole tree again. Every directory below the roots is registered with a WatchService (directories created later are registered as
+ * they appear). A file is processed once it has had no create or modify event for the debounce period, so a burst of writes to it
+ * is handled once, and files are picked the same way searchDirsAndDestroyDups picks them (see FileSelector). A file is never
+ * processed by two workers at once: one that is due again while it is being processed is processed again once that is done.
+ *
+ * Producers should write a file completely within the debounce period, or write it under another name and rename it into place: a
+ * file is replaced by a new one when duplicates are eliminated, and writes through a handle that is still open on the old file are
+ * lost.
+ *
+ * Memory stays bounded under a flood of events: at most maxPending files wait out their debounce period (beyond that the oldest are
+ * handed over early), and the queue in front of the workers is bounded with the watching thread processing a file itself when it is
+ * full, which slows down event handling until the workers catch up. If the WatchService drops events because of that, the trees are
+ * walked again so that nothing is missed.
+ */
+public final class WatchDaemon {
+
+	// Size of the list of files this daemon replaced, whose own events are ignored
+	private static final int OWN_WRITES = 4096;
+
+	private final List<Path> roots;
+	private final long debounceNanos;
+	private final int threads;
+	// Most files waiting for their debounce period to end
+	private final int maxPending;
+
+	private final WatchService watcher;
+	// Workers, behind a bounded queue (see above), that drop the big buffers they keep when they have been out of work for a while
+	private final ThreadPoolExecutor pool;
+	private final Map<WatchKey, FileSelector> keys = new HashMap<WatchKey, FileSelector>();
+	// Files waiting for their debounce period to end, by deadline (a new event moves a file to the back with a later deadline)
+	private final LinkedHashMap<Path, Long> pending = new LinkedHashMap<Path, Long>();
+	/*
+	 * Files handed over to the workers and not finished yet, each with whether it is due again (its debounce period ended again
+	 * while it was being processed). Guarded by itself.
+	 */
+	private final Map<Path, Boolean> inFlight = new HashMap<Path, Boolean>();
+	// Size and modification time of files this daemon replaced recently, the events their replacement causes are ignored
+	private final Map<Path, String> ownWrites = new LinkedHashMap<Path, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, String> eldest)
+		{
+			return size() > OWN_WRITES;
+		}
+	};
+	private volatile boolean running = true;
+
+	public WatchDaemon(List<Path> roots, long debounceMillis, int threads) throws IOException
+	{
+		this.roots = roots;
+		this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+		this.threads = Math.max(1, threads);
+		this.maxPending = this.threads * 1024;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.pool = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.threads * 64) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public Runnable take() throws InterruptedException
+					{
+						Runnable task;
+						while ((task = poll(BufferArena.IDLE_NANOS, TimeUnit.NANOSECONDS)) == null)
+						{
+							FileUtil.releaseIdleBuffers();
+						}
+						return task;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/*
+	 * Runs until stop() is called: registers the trees, processes the files that are already there (so nothing written before the
+	 * watches were in place is missed), then processes files as events come in. Files still waiting when it is stopped are processed
+	 * before it returns.
+	 */
+	public void run() throws IOException
+	{
+		FileUtil.replacing = this::replacing;
+		try
+		{
+			for (Path root : roots)
+			{
+				registerTree(new FileSelector(root), root);
+			}
+			dispatchAll();
+			while (running)
+			{
+				WatchKey key = watcher.poll(nextWait(), TimeUnit.NANOSECONDS);
+				while (key != null)
+				{
+					handle(key);
+					key = watcher.poll();
+				}
+				dispatchDue();
+			}
+		}
+		catch (ClosedWatchServiceException e)
+		{
+			// stopped
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			dispatchAll();
+			pool.shutdown();
+			awaitQuietly(pool);
+			FileUtil.replacing = null;
+			watcher.close();
+		}
+	}
+
+	// Makes run() return once the files it has been told about are processed (can be called from any thread)
+	public void stop()
+	{
+		running = false;
+		try
+		{
+			watcher.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Failed to close watch service. " + e);
+		}
+	}
+
+	// Helper method that returns how long to wait for events: until the next debounce period ends, or a while if nothing is waiting
+	private long nextWait()
+	{
+		if (pending.isEmpty())
+		{
+			return TimeUnit.SECONDS.toNanos(1);
+		}
+		return Math.max(0, pending.values().iterator().next() - System.nanoTime());
+	}
+
+	// Helper method that takes the events of a directory
+	private void handle(WatchKey key) throws IOException
+	{
+		FileSelector selector = keys.get(key);
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+			{
+				// events were dropped, look at everything again
+				for (Path root : roots)
+				{
+					registerTree(new FileSelector(root), root);
+				}
+				continue;
+			}
+			if (selector == null)
+			{
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+			{
+				// files can be created in a new directory before it is registered, so they are looked for as well
+				try
+				{
+					registerTree(selector, path);
+				}
+				catch (NoSuchFileException e)
+				{
+					// gone again already
+				}
+				catch (IOException e)
+				{
+					System.err.println("Failed to watch " + path + ". " + e);
+				}
+			}
+			else if (selector.accepts(path))
+			{
+				schedule(path);
+			}
+		}
+		if (!key.reset())
+		{
+			// the directory is gone
+			keys.remove(key);
+		}
+	}
+
+	// Helper method that registers a directory and the directories below it, and schedules the files in them
+	private void registerTree(FileSelector selector, Path start) throws IOException
+	{
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				if (!dir.equals(selector.root()) && selector.isExcluded(dir))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				if (keys.put(key, selector) == null)
+				{
+					RunMetrics.directoryFound(dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if (attrs.isRegularFile() && selector.accepts(file))
+				{
+					schedule(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				// gone again before it could be looked at
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/*
+	 * Helper method that (re)starts the debounce period of a file, handing over the oldest file waiting early if that makes too
+	 * many, so that the bound holds however many events come in before the next dispatchDue
+	 */
+	private void schedule(Path path)
+	{
+		pending.remove(path);
+		pending.put(path, System.nanoTime() + debounceNanos);
+		if (pending.size() > maxPending)
+		{
+			Iterator<Path> it = pending.keySet().iterator();
+			Path oldest = it.next();
+			it.remove();
+			submit(oldest);
+		}
+	}
+
+	// Helper method that hands over the files whose debounce period is over
+	private void dispatchDue()
+	{
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<Path, Long> entry = it.next();
+			if (entry.getValue() > now)
+			{
+				break;
+			}
+			it.remove();
+			submit(entry.getKey());
+		}
+	}
+
+	private void dispatchAll()
+	{
+		Iterator<Path> it = pending.keySet().iterator();
+		while (it.hasNext())
+		{
+			Path path = it.next();
+			it.remove();
+			submit(path);
+		}
+	}
+
+	/*
+	 * Helper method that hands a file over to the workers, or marks it due again if a worker is still processing it: two workers
+	 * must never work on the same file at once (with inPlace they would write into it together), so that worker takes it again
+	 * when it is done.
+	 */
+	private void submit(Path path)
+	{
+		synchronized (inFlight)
+		{
+			if (inFlight.containsKey(path))
+			{
+				inFlight.put(path, true);
+				return;
+			}
+			inFlight.put(path, false);
+		}
+		pool.execute(() -> {
+			do
+			{
+				process(path);
+			}
+			while (dueAgain(path));
+		});
+	}
+
+	// Helper method that tells a worker done with a file whether it is due again, and if not lets it be handed over anew
+	private boolean dueAgain(Path path)
+	{
+		synchronized (inFlight)
+		{
+			if (inFlight.put(path, false))
+			{
+				return true;
+			}
+			inFlight.remove(path);
+			return false;
+		}
+	}
+
+	/*
+	 * Helper method that processes a file on a worker, unless it has gone, is not readable and writable any more, or is exactly as
+	 * this daemon left it (the event came from replacing it).
+	 */
+	private void process(Path path)
+	{
+		BasicFileAttributes attrs;
+		try
+		{
+			attrs = FileAttributes.read(path);
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+		if (!attrs.isRegularFile() || !VerificationUtil.canProcess(path))
+		{
+			return;
+		}
+		String state = attrs.size() + "/" + attrs.lastModifiedTime();
+		synchronized (ownWrites)
+		{
+			if (state.equals(ownWrites.get(path)))
+			{
+				return;
+			}
+		}
+		FileUtil.elimDupsIsolated(path, attrs);
+	}
+
+	// Helper method that remembers what a file this daemon changes looks like afterwards (see FileUtil.replacing)
+	private void replacing(Path path, BasicFileAttributes attrs)
+	{
+		synchronized (ownWrites)
+		{
+			ownWrites.put(path, attrs.size() + "/" + attrs.lastModifiedTime());
+		}
+	}
+
+	private static void awaitQuietly(ThreadPoolExecutor pool)
+	{
+		try
+		{
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+			{
+			}
+		}
+		catch (InterruptedException e)
+		{
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
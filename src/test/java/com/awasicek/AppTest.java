@@ -1,5 +1,40 @@
 package com.awasicek;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -47,4 +82,1097 @@ public class AppTest
     			"For another example, here is a duplicate with punctuation marks.";
         assertEquals(ElimDupsTest.testElimDups("test.txt", testString), verificationString);
     }
+
+    public void testRegexEngine()
+    {
+    	InfoUtil.useGraphics = false;
+    	FileUtil.useRegexEngine = true; // the reference implementation must give the same result
+    	try
+    	{
+    		assertEquals("This is an example of duplicate. Marks?",
+    				ElimDupsTest.testElimDups("test.txt", "This is is an example example of duplicate. Marks? marks marks!"));
+    	}
+    	finally
+    	{
+    		FileUtil.useRegexEngine = false;
+    	}
+    }
+
+    public void testScannerMatchesRegexEdgeCases()
+    {
+    	String[] cases = {
+    			"", "is", "is is", "is  is\tis\n", "is is. is x", "x! x, x y", "the the theory", "foo-bar bar", "a.b b",
+    			"word. word.", "word word.", "word... word", "(a) (a)", "$1 $1", "a\\b a\\b", "Hello HELLO hello", "über über",
+    			"Über üBER", "e\u0301 e\u0301", "a\u0301 a\u0301 b", "_ _", "1 1 2 2", "marks marks? This", "marks? marks? marks",
+    			"end end ", " lead lead", "x\u000Bx x", "\ud835\udc00 \ud835\udc00 x", "a,a a,a" };
+    	for (String text : cases)
+    	{
+    		assertEquals(text, FileUtil.regexElimDups(text), DupScanner.elimDups(text));
+    	}
+    }
+
+    public void testScannerMatchesRegexRandom()
+    {
+    	// Differential check of the scanner against the regex on text built from a small alphabet so that duplicates are frequent
+    	String[] pieces = { "is", "Is", "IS", "island", "a", "an", "foo-bar", "bar", "_x", "x1", "é", "e\u0301", "!", ",", ".", ";", "?",
+    			"-", "'", "(", " ", " ", " ", "\n", "\t", "\r\n" };
+    	Random random = new Random(42);
+    	for (int n = 0; n < 20000; n++)
+    	{
+    		StringBuilder sb = new StringBuilder();
+    		int count = random.nextInt(16);
+    		for (int k = 0; k < count; k++)
+    		{
+    			sb.append(pieces[random.nextInt(pieces.length)]);
+    		}
+    		String text = sb.toString();
+    		assertEquals(text, FileUtil.regexElimDups(text), DupScanner.elimDups(text));
+    	}
+    }
+
+    public void testScannerChunkBoundaries() throws IOException
+    {
+    	// Feeding the same text in pieces of every size must not change the result, duplicates spanning two pieces included
+    	String[] pieces = { "is", "Is", "island", "a", "foo-bar", "bar", "é", "e\u0301", "\ud835\udc00", "!", ",", ".", "?", "-",
+    			" ", " ", "  ", "\n" };
+    	Random random = new Random(7);
+    	for (int n = 0; n < 5000; n++)
+    	{
+    		StringBuilder sb = new StringBuilder();
+    		int count = random.nextInt(24);
+    		for (int k = 0; k < count; k++)
+    		{
+    			sb.append(pieces[random.nextInt(pieces.length)]);
+    		}
+    		String text = sb.toString();
+    		String expected = DupScanner.elimDups(text);
+    		StringBuilder out = new StringBuilder();
+    		DupScanner scanner = new DupScanner(out);
+    		int start = 0;
+    		while (start < text.length())
+    		{
+    			int end = Math.min(text.length(), start + 1 + random.nextInt(4));
+    			scanner.write(text, start, end);
+    			start = end;
+    		}
+    		scanner.finish();
+    		assertEquals(text, expected, out.toString());
+    	}
+    }
+
+    public void testByteScanner() throws IOException
+    {
+    	// Scanning the UTF-8 bytes must give the encoding of what scanning the chars gives, in pieces of any size
+    	String[] pieces = { "is", "Is", "island", "a", "foo-bar", "é", "É", "e\u0301", "\u0301", "\ud835\udc00", "\u4e2d", "\u00df",
+    			"!", ",", ".", "?", "-", " ", " ", "  ", "\n" };
+    	Random random = new Random(11);
+    	for (int n = 0; n < 5000; n++)
+    	{
+    		StringBuilder sb = new StringBuilder();
+    		int count = random.nextInt(24);
+    		for (int k = 0; k < count; k++)
+    		{
+    			sb.append(pieces[random.nextInt(pieces.length)]);
+    		}
+    		String text = sb.toString();
+    		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		ByteDupScanner scanner = new ByteDupScanner(out);
+    		int start = 0;
+    		while (start < bytes.length)
+    		{
+    			int end = Math.min(bytes.length, start + 1 + random.nextInt(4));
+    			scanner.write(bytes, start, end - start);
+    			start = end;
+    		}
+    		scanner.finish();
+    		assertEquals(text, DupScanner.elimDups(text), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    	}
+
+    	// bytes that are not UTF-8 are kept as they are, and the ASCII around them is still looked at
+    	byte[] malformed = { 'a', ' ', 'a', ' ', (byte) 0xFF, ' ', (byte) 0xC3, ' ', 'b', ' ', 'B', '.' };
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	ByteDupScanner scanner = new ByteDupScanner(out);
+    	scanner.write(malformed, 0, malformed.length);
+    	assertTrue(scanner.finish());
+    	assertTrue(Arrays.equals(new byte[] { 'a', ' ', (byte) 0xFF, ' ', (byte) 0xC3, ' ', 'b', '.' }, out.toByteArray()));
+    }
+
+    public void testByteKernel() throws IOException
+    {
+    	// The kernel in use (the vector one when the tests run on JDK 16 and later) must give what the byte at a time one gives
+    	ByteKernel scalar = new ByteKernel();
+    	ByteKernel kernel = ByteKernel.DEFAULT;
+    	byte[] alphabet = "aAzZ09_ \t\n\r\u000B\f.,!?;-@[`{\u007F".getBytes(StandardCharsets.ISO_8859_1);
+    	Random random = new Random(23);
+    	for (int n = 0; n < 20000; n++)
+    	{
+    		byte[] a = new byte[1 + random.nextInt(300)];
+    		for (int k = 0; k < a.length; k++)
+    		{
+    			a[k] = random.nextInt(8) == 0 ? (byte) random.nextInt(256) : alphabet[random.nextInt(alphabet.length)];
+    		}
+    		byte[] b = a.clone();
+    		for (int k = 0; k < b.length; k++)
+    		{
+    			if (random.nextInt(4) == 0)
+    			{
+    				b[k] ^= 0x20;
+    			}
+    		}
+    		int from = random.nextInt(a.length);
+    		int to = from + random.nextInt(a.length - from + 1);
+    		assertEquals(scalar.findSpace(a, from, to), kernel.findSpace(a, from, to));
+    		assertEquals(scalar.skipClass(a, from, to, true), kernel.skipClass(a, from, to, true));
+    		assertEquals(scalar.skipClass(a, from, to, false), kernel.skipClass(a, from, to, false));
+    		assertEquals(scalar.equalsIgnoreAsciiCase(a, from, b, from, to - from), kernel.equalsIgnoreAsciiCase(a, from, b, from, to - from));
+    		assertEquals(scalar.equalsIgnoreAsciiCase(a, 0, b, from, to - from), kernel.equalsIgnoreAsciiCase(a, 0, b, from, to - from));
+    	}
+
+    	// and the scanner with it the same as the char scanner, on words longer than a vector
+    	String[] pieces = { "Pneumonoultramicroscopicsilicovolcanoconiosis", "PNEUMONOultramicroscopicsilicovolcanoconiosis",
+    			"supercalifragilisticexpialidocious_and_then_some_more_letters_past_sixty_four", "é", "e\u0301", "is", "!", ".", " ", "\n" };
+    	for (int n = 0; n < 2000; n++)
+    	{
+    		StringBuilder sb = new StringBuilder();
+    		int count = random.nextInt(40);
+    		for (int k = 0; k < count; k++)
+    		{
+    			sb.append(pieces[random.nextInt(pieces.length)]);
+    		}
+    		String text = sb.toString();
+    		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		ByteDupScanner scanner = new ByteDupScanner(out, kernel);
+    		scanner.write(bytes, 0, bytes.length);
+    		scanner.finish();
+    		assertEquals(text, DupScanner.elimDups(text), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    	}
+    }
+
+    public void testDuplicateEliminator() throws IOException
+    {
+    	// One engine reused for every variant gives what the regex gives, and allocates nothing once it has warmed up
+    	DuplicateEliminator engine = new DuplicateEliminator();
+    	String[] texts = { "This is is a test test.", "Über über, naïve NAÏVE naïve. é é", "nothing here", "", "a, a; b b!" };
+    	StringBuilder sb = new StringBuilder();
+    	StringWriter writer = new StringWriter();
+    	ByteBuffer out = ByteBuffer.allocateDirect(256);
+    	for (String text : texts)
+    	{
+    		String expected = FileUtil.regexElimDups(text);
+    		sb.setLength(0);
+    		assertEquals(!expected.equals(text), engine.eliminate(text, sb));
+    		assertEquals(expected, sb.toString());
+    		writer.getBuffer().setLength(0);
+    		engine.eliminate(new StringReader(text), writer);
+    		assertEquals(expected, writer.toString());
+    		out.clear();
+    		engine.eliminate(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), out);
+    		out.flip();
+    		assertEquals(expected, StandardCharsets.UTF_8.decode(out).toString());
+    	}
+    	assertEquals(2, engine.duplicatesRemoved());
+
+    	java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    	if (threads instanceof com.sun.management.ThreadMXBean)
+    	{
+    		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    		ByteBuffer in = ByteBuffer.allocateDirect(64);
+    		in.put("Dup dup dup, and and more.".getBytes(StandardCharsets.UTF_8)).flip();
+    		for (int k = 0; k < 20000; k++)
+    		{
+    			in.rewind();
+    			out.clear();
+    			engine.eliminate(in, out);
+    		}
+    		// the vector kernel allocates until the JIT has compiled it, which can take a few more rounds
+    		long allocated = Long.MAX_VALUE;
+    		for (int round = 0; round < 20 && allocated >= 10000; round++)
+    		{
+    			long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    			for (int k = 0; k < 10000; k++)
+    			{
+    				in.rewind();
+    				out.clear();
+    				engine.eliminate(in, out);
+    			}
+    			allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    		}
+    		assertTrue(allocated + " bytes allocated", allocated < 10000);
+    	}
+    }
+
+    public void testFilter() throws IOException
+    {
+    	// Text that is decided leaves before the input ends, the rest when it ends
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	InputStream in = new SequenceInputStream(new ByteArrayInputStream("Dup dup. Next ".getBytes(StandardCharsets.UTF_8)),
+    			new InputStream() {
+    				@Override
+    				public int read()
+    				{
+    					assertEquals("Dup. ", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    					return -1;
+    				}
+    			});
+    	assertTrue(FileUtil.filter(in, out));
+    	assertEquals("Dup. Next ", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    	assertTrue(RunOptions.parse(new String[] { "-" }).filter);
+    	assertFalse(RunOptions.parse(new String[] { "--", "-" }).filter);
+    }
+
+    public void testCharset() throws IOException
+    {
+    	// Files in another charset go through the decoding path and come back in the same charset
+    	Charset charset = FileUtil.charset;
+    	FileUtil.charset = StandardCharsets.ISO_8859_1;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		Path file = Files.write(dir.resolve("latin.txt"), "Caf\u00e9 CAF\u00c9 caf\u00e9.".getBytes(StandardCharsets.ISO_8859_1));
+    		assertFalse(FileUtil.elimDups(file)); // é and É only differ in case outside ASCII, like the regex
+    		assertTrue(FileUtil.elimDups(Files.write(file, "\u00e9t\u00e9 \u00e9t\u00e9.".getBytes(StandardCharsets.ISO_8859_1))));
+    		assertEquals("\u00e9t\u00e9.", new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1));
+    	}
+    	finally
+    	{
+    		FileUtil.charset = charset;
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testStreaming()
+    {
+    	InfoUtil.useGraphics = false;
+    	long threshold = FileUtil.streamingThreshold;
+    	FileUtil.streamingThreshold = 0; // stream everything
+    	try
+    	{
+    		// a run of duplicates much longer than the stream buffer
+    		StringBuilder sb = new StringBuilder("Start");
+    		for (int k = 0; k < 100000; k++)
+    		{
+    			sb.append(k % 2 == 0 ? " run" : "\nRUN");
+    		}
+    		sb.append(". End end.");
+    		assertEquals("Start run. End.", ElimDupsTest.testElimDups("test.txt", sb.toString()));
+    	}
+    	finally
+    	{
+    		FileUtil.streamingThreshold = threshold;
+    	}
+    }
+
+    public void testMemoryMapped()
+    {
+    	InfoUtil.useGraphics = false;
+    	long threshold = FileUtil.mappingThreshold;
+    	FileUtil.mappingThreshold = 0; // map everything
+    	try
+    	{
+    		StringBuilder sb = new StringBuilder();
+    		for (int k = 0; k < 50000; k++)
+    		{
+    			sb.append(k % 3 == 0 ? "Über über, " : "naïve NAÏVE naïve. ");
+    		}
+    		String text = sb.toString();
+    		assertEquals(DupScanner.elimDups(text), ElimDupsTest.testElimDups("test.txt", text));
+    	}
+    	finally
+    	{
+    		FileUtil.mappingThreshold = threshold;
+    	}
+    }
+
+    public void testUnchangedFileIsNotRewritten() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		Path clean = Files.write(dir.resolve("clean.txt"), "Nothing to see here.".getBytes());
+    		FileTime before = FileTime.fromMillis(1000000000000L);
+    		Files.setLastModifiedTime(clean, before);
+    		assertFalse(FileUtil.elimDups(clean));
+    		assertEquals(before, Files.getLastModifiedTime(clean));
+
+    		Path dirty = Files.write(dir.resolve("dirty.txt"), "Something something here.".getBytes());
+    		assertTrue(FileUtil.elimDups(dirty));
+    		assertEquals("Something here.", new String(Files.readAllBytes(dirty)));
+    		try (Stream<Path> left = Files.list(dir))
+    		{
+    			assertEquals("no temporary files are left behind", 2, left.count());
+    		}
+    	}
+    	finally
+    	{
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testInPlace() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	long streaming = FileUtil.streamingThreshold;
+    	Charset charset = FileUtil.charset;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	FileUtil.inPlace = true;
+    	try
+    	{
+    		StringBuilder text = new StringBuilder();
+    		while (text.length() < 300000)
+    		{
+    			text.append("Log line ").append(text.length()).append(" über alles.\n");
+    		}
+    		text.append("the end end. End!");
+    		String expected = DupScanner.elimDups(text.toString());
+    		// UTF-8 read at once, UTF-8 streamed, and another charset read at once
+    		for (int k = 0; k < 3; k++)
+    		{
+    			FileUtil.streamingThreshold = k == 1 ? 1000 : streaming;
+    			FileUtil.charset = k == 2 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+    			Path file = Files.write(dir.resolve("log.txt"), text.toString().getBytes(FileUtil.charset));
+    			Object inode = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    			assertTrue(FileUtil.elimDups(file));
+    			assertEquals(expected, new String(Files.readAllBytes(file), FileUtil.charset));
+    			assertEquals(inode, Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+    			assertFalse(FileUtil.elimDups(file));
+    		}
+    		// Only cut off, when everything up to the end is as it was
+    		FileUtil.charset = StandardCharsets.UTF_8;
+    		Path tail = Files.write(dir.resolve("tail.txt"), "the end end".getBytes());
+    		assertTrue(FileUtil.elimDups(tail));
+    		assertEquals("the end", new String(Files.readAllBytes(tail)));
+    	}
+    	finally
+    	{
+    		FileUtil.inPlace = false;
+    		FileUtil.streamingThreshold = streaming;
+    		FileUtil.charset = charset;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testGzip() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	FileUtil.gzip = true;
+    	try
+    	{
+    		StringBuilder text = new StringBuilder();
+    		while (text.length() < 200000)
+    		{
+    			text.append("Line ").append(text.length()).append(" is kept.\n");
+    		}
+    		text.append("the the end.");
+    		Path dirty = gzip(dir.resolve("dirty.txt.gz"), text.toString());
+    		Path clean = gzip(dir.resolve("clean.txt.gz"), "Nothing to see here.");
+    		FileTime before = FileTime.fromMillis(1000000000000L);
+    		Files.setLastModifiedTime(clean, before);
+    		Path broken = Files.write(dir.resolve("broken.txt.gz"), "not gzip at all at all".getBytes());
+    		RunMetrics.reset();
+    		FileUtil.searchDirsAndDestroyDups(dir);
+    		assertEquals(2, RunMetrics.processedFiles.count());
+    		assertEquals(1, RunMetrics.failedCount());
+    		assertEquals(DupScanner.elimDups(text.toString()), gunzip(dirty));
+    		assertEquals(before, Files.getLastModifiedTime(clean));
+    		assertEquals("not gzip at all at all", new String(Files.readAllBytes(broken)));
+    		try (Stream<Path> left = Files.list(dir))
+    		{
+    			assertEquals("no temporary files are left behind", 3, left.count());
+    		}
+    	}
+    	finally
+    	{
+    		FileUtil.gzip = false;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    private static Path gzip(Path file, String text) throws IOException
+    {
+    	try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file)))
+    	{
+    		out.write(text.getBytes(StandardCharsets.UTF_8));
+    	}
+    	return file;
+    }
+
+    private static String gunzip(Path file) throws IOException
+    {
+    	try (InputStream in = new GZIPInputStream(Files.newInputStream(file)))
+    	{
+    		return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    	}
+    }
+
+    public void testBufferArena() throws IOException
+    {
+    	BufferArena arena = new BufferArena(1024 * 1024);
+    	assertEquals(512 * 1024, arena.largest());
+    	assertNull(arena.take(512 * 1024 + 1));
+    	ByteBuffer small = arena.take(5000);
+    	assertTrue(small.isDirect());
+    	assertEquals(8192, small.capacity());
+    	assertEquals(5000, small.limit());
+    	small.put((byte) 1);
+    	arena.give(small);
+    	ByteBuffer again = arena.take(6000);
+    	assertSame(small, again);
+    	assertEquals(0, again.position());
+    	arena.give(again);
+
+    	// no more than the capacity is kept, and the big buffers go once they have not been needed for a while
+    	ByteBuffer[] big = { arena.take(200000), arena.take(200000), arena.take(200000), arena.take(300000) };
+    	for (ByteBuffer buffer : big)
+    	{
+    		arena.give(buffer);
+    	}
+    	assertEquals(8192 + 3 * 256 * 1024, arena.kept());
+    	arena.releaseIdle(System.nanoTime() + BufferArena.IDLE_NANOS + 1);
+    	assertEquals(8192, arena.kept());
+
+    	// files read at once go through the buffers of the thread, and what is allocated for one does not grow with its size
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		/*
+    		 * No token is longer than 8 bytes, which the vector kernel (when the tests run with it) leaves to the byte at a time
+    		 * loops: how much its vectors allocate until the JIT has compiled them goes by what the tests before it ran, not by
+    		 * the buffers
+    		 */
+    		StringBuilder text = new StringBuilder();
+    		while (text.length() < 256 * 1024)
+    		{
+    			text.append("Line ").append(text.length()).append(" has has a repeat.\n");
+    		}
+    		byte[] dirty = text.toString().getBytes(StandardCharsets.UTF_8);
+    		byte[] clean = DupScanner.elimDups(text.toString()).getBytes(StandardCharsets.UTF_8);
+    		Path file = dir.resolve("a.txt");
+    		for (int k = 0; k < 10; k++)
+    		{
+    			Files.write(file, dirty);
+    			assertTrue(FileUtil.elimDups(file));
+    			assertTrue(Arrays.equals(clean, Files.readAllBytes(file)));
+    		}
+    		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    		if (threads instanceof com.sun.management.ThreadMXBean)
+    		{
+    			com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    			// (as in testDuplicateEliminator, until the JIT has compiled the vector kernel)
+    			long allocated = Long.MAX_VALUE;
+    			for (int round = 0; round < 20 && allocated >= dirty.length / 4; round++)
+    			{
+    				allocated = 0;
+    				for (int k = 0; k < 5; k++)
+    				{
+    					Files.write(file, dirty);
+    					long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    					FileUtil.elimDups(file);
+    					allocated += allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+    				}
+    				allocated /= 5;
+    			}
+    			assertTrue(allocated + " bytes allocated per file", allocated < dirty.length / 4);
+    		}
+    	}
+    	finally
+    	{
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testContentCache() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	FileUtil.resultCacheBytes = 1024 * 1024;
+    	try
+    	{
+    		// Copies of a template with duplicates and of a clean one, and a file with two links to it
+    		for (int k = 0; k < 10; k++)
+    		{
+    			Files.write(dir.resolve("dirty" + k + ".txt"), "A template template with with duplicates.".getBytes());
+    			Files.write(dir.resolve("clean" + k + ".txt"), "A clean template.".getBytes());
+    		}
+    		Path linked = Files.write(dir.resolve("linked.txt"), "Linked linked twice, for a change change.".getBytes());
+    		Path link = Files.createLink(dir.resolve("link.txt"), linked);
+    		RunMetrics.reset();
+    		FileUtil.searchDirsAndDestroyDups(dir);
+    		ContentCache cache = FileUtil.resultCache();
+    		assertEquals(18, cache.hits());
+    		assertEquals(3, cache.misses());
+    		assertEquals(1, RunMetrics.skippedCount());
+    		assertEquals(10 * 2 + 2, RunMetrics.duplicatesRemoved());
+    		for (int k = 0; k < 10; k++)
+    		{
+    			assertEquals("A template with duplicates.", new String(Files.readAllBytes(dir.resolve("dirty" + k + ".txt"))));
+    		}
+    		assertEquals("Linked twice, for a change.", new String(Files.readAllBytes(link)));
+    		assertTrue("the links still share one file", Files.isSameFile(linked, link));
+    	}
+    	finally
+    	{
+    		FileUtil.resultCacheBytes = 0;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testAudit() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	FileUtil.audit = true;
+    	try
+    	{
+    		StringBuilder text = new StringBuilder("Über the the top.\n");
+    		while (text.length() < 1000000)
+    		{
+    			text.append("Line ").append(text.length()).append(" has has a duplicate.\n");
+    		}
+    		Path dirty = Files.write(dir.resolve("dirty.txt"), text.toString().getBytes(StandardCharsets.UTF_8));
+    		Path clean = Files.write(dir.resolve("clean.txt"), "Nothing to see here.".getBytes());
+    		FileTime before = FileTime.fromMillis(1000000000000L);
+    		Files.setLastModifiedTime(dirty, before);
+    		Path report = dir.resolve("report.json");
+    		RunMetrics.reset();
+    		RunMetrics.openReport(report);
+    		FileUtil.searchDirsAndDestroyDups(dir);
+    		RunMetrics.finish(null);
+    		assertEquals(1, RunMetrics.changedCount());
+    		assertEquals(1, RunMetrics.cleanCount());
+    		// read only up to the first duplicate, at the second "the" (after the two bytes of Ü)
+    		assertTrue(RunMetrics.duplicatesRemoved() < 10000);
+    		assertTrue(new String(Files.readAllBytes(report)).contains("\"first_duplicate\":9,"));
+    		assertEquals(text.toString(), new String(Files.readAllBytes(dirty), StandardCharsets.UTF_8));
+    		assertEquals(before, Files.getLastModifiedTime(dirty));
+    		assertEquals("Nothing to see here.", new String(Files.readAllBytes(clean)));
+
+    		FileUtil.auditCounts = true;
+    		RunMetrics.reset();
+    		assertTrue(FileUtil.elimDups(dirty));
+    		assertFalse(FileUtil.elimDups(clean));
+    		assertEquals(DupScanner.elimDups(text.toString()).length(), text.length() - 4 * RunMetrics.duplicatesRemoved());
+    		assertEquals(before, Files.getLastModifiedTime(dirty));
+    	}
+    	finally
+    	{
+    		FileUtil.audit = false;
+    		FileUtil.auditCounts = false;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testFlightEvents() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	Path jfr = Files.createTempFile("elimdups", ".jfr");
+    	try (Recording recording = new Recording())
+    	{
+    		Files.write(dir.resolve("a.txt"), "Two two words.".getBytes());
+    		Files.write(dir.resolve("b.txt"), "Clean.".getBytes());
+    		recording.enable("elimdups.File");
+    		recording.enable("elimdups.DirectoryRun");
+    		recording.start();
+    		RunMetrics.reset();
+    		FileUtil.searchDirsAndDestroyDups(dir);
+    		recording.stop();
+    		recording.dump(jfr);
+    		List<RecordedEvent> events = RecordingFile.readAllEvents(jfr);
+    		List<String> files = events.stream().filter(e -> e.getEventType().getName().equals("elimdups.File"))
+    				.map(e -> e.getString("path").endsWith("a.txt") + " " + e.getString("outcome") + " " + e.getLong("duplicates"))
+    				.sorted().collect(Collectors.toList());
+    		assertEquals(Arrays.asList("false clean 0", "true changed 1"), files);
+    		RecordedEvent run = events.stream().filter(e -> e.getEventType().getName().equals("elimdups.DirectoryRun")).findFirst()
+    				.get();
+    		assertEquals(2, run.getLong("files"));
+    	}
+    	finally
+    	{
+    		RunMetrics.reset();
+    		Files.delete(jfr);
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testParallelDirectory() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	int threads = FileUtil.threads;
+    	FileUtil.threads = 4;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		for (int k = 0; k < 200; k++)
+    		{
+    			Path sub = Files.createDirectories(dir.resolve("d" + (k % 7)));
+    			Files.write(sub.resolve("f" + k + ".txt"), ("file file " + k + " " + k + ".").getBytes());
+    		}
+    		Files.write(dir.resolve("skip.dat"), "skip skip".getBytes());
+    		RunMetrics.reset();
+    		FileUtil.searchDirsAndDestroyDups(dir);
+    		assertEquals(200, RunMetrics.processedFiles.count());
+    		assertEquals(400, RunMetrics.duplicatesRemoved());
+    		assertEquals("file 17.", new String(Files.readAllBytes(dir.resolve("d3").resolve("f17.txt"))));
+    		assertEquals("skip skip", new String(Files.readAllBytes(dir.resolve("skip.dat"))));
+    	}
+    	finally
+    	{
+    		FileUtil.threads = threads;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testTreeWalker() throws IOException
+    {
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		for (int k = 0; k < 60; k++)
+    		{
+    			Path sub = Files.createDirectories(dir.resolve("a" + (k % 3)).resolve("b" + (k % 5)));
+    			Files.write(sub.resolve("f" + k + ".txt"), "text".getBytes());
+    			Files.write(sub.resolve("f" + k + ".dat"), "data".getBytes());
+    		}
+    		Path skipped = Files.createDirectories(dir.resolve("a1").resolve("skip").resolve("deeper"));
+    		Files.write(skipped.resolve("s.txt"), "skipped".getBytes());
+    		Files.createSymbolicLink(dir.resolve("link.txt"), dir.resolve("a0").resolve("b0").resolve("f0.txt"));
+    		FileUtil.excludeGlobs = Collections.singletonList("skip");
+    		for (int threads : new int[] { 1, 4 })
+    		{
+    			RunMetrics.reset();
+    			Set<Path> found = ConcurrentHashMap.newKeySet();
+    			new TreeWalker(new FileSelector(dir), threads).walk((p, attrs) -> {
+    				assertTrue(attrs.isRegularFile());
+    				assertEquals(4, attrs.size());
+    				// the attributes of the walk, only a symbolic link is read again (with the link count where it can be)
+    				if (FileSystems.getDefault().supportedFileAttributeViews().contains("unix"))
+    				{
+    					assertEquals(p.getFileName().toString().equals("link.txt"), attrs instanceof FileAttributes);
+    				}
+    				assertEquals(1, FileAttributes.links(p, attrs));
+    				assertTrue(found.add(p));
+    			});
+    			assertEquals(61, found.size());
+    			assertTrue(found.contains(dir.resolve("link.txt")));
+    			// the starting directory, 3 below it and 15 below those, but not the excluded ones
+    			assertEquals(19, RunMetrics.directories.count());
+    		}
+    	}
+    	finally
+    	{
+    		FileUtil.excludeGlobs = Collections.emptyList();
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testMemoryBudget() throws Exception
+    {
+    	// A request beyond the budget takes all of it, and a worker that does not fit waits for room
+    	MemoryBudget budget = new MemoryBudget(64 * 1024);
+    	int all = budget.acquire(1L << 40);
+    	assertEquals(budget.total(), budget.inUse());
+    	Thread waiter = new Thread(() -> budget.release(budget.acquire(1)));
+    	waiter.start();
+    	waiter.join(200);
+    	assertTrue(waiter.isAlive());
+    	budget.release(all);
+    	waiter.join();
+    	assertEquals(0, budget.inUse());
+
+    	// A directory run under a budget far below its files still processes them all, the big ones streamed
+    	InfoUtil.useGraphics = false;
+    	int threads = FileUtil.threads;
+    	long memory = FileUtil.memoryBudget;
+    	boolean mapping = FileUtil.useMemoryMapping;
+    	FileUtil.threads = 4;
+    	FileUtil.memoryBudget = 256 * 1024;
+    	FileUtil.useMemoryMapping = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		StringBuilder big = new StringBuilder();
+    		while (big.length() < 1024 * 1024)
+    		{
+    			big.append("big big data. ");
+    		}
+    		for (int k = 0; k < 40; k++)
+    		{
+    			Files.write(dir.resolve("f" + k + ".txt"), (k % 10 == 0 ? big.toString() : "small small " + k).getBytes());
+    		}
+    		RunMetrics.reset();
+    		FileUtil.searchDirsAndDestroyDups(dir);
+    		assertEquals(40, RunMetrics.processedFiles.count());
+    		assertEquals(0, RunMetrics.failedCount());
+    		assertEquals("small 7", new String(Files.readAllBytes(dir.resolve("f7.txt"))));
+    		assertEquals(DupScanner.elimDups(big.toString()), new String(Files.readAllBytes(dir.resolve("f20.txt"))));
+    	}
+    	finally
+    	{
+    		FileUtil.threads = threads;
+    		FileUtil.memoryBudget = memory;
+    		FileUtil.useMemoryMapping = mapping;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testManifestSkipsCleanFiles() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	Path manifestFile = dir.resolve("run.manifest");
+    	Path tree = Files.createDirectory(dir.resolve("tree"));
+    	try
+    	{
+    		Path a = Files.write(tree.resolve("a.txt"), "alpha alpha".getBytes());
+    		Path b = Files.write(tree.resolve("b.txt"), "beta".getBytes());
+    		FileUtil.manifest = Manifest.load(manifestFile);
+    		FileUtil.searchDirsAndDestroyDups(tree);
+    		assertEquals(2, FileUtil.manifest.size());
+    		// not saved, as if the run had been killed: the journal still has the entries
+    		FileUtil.manifest = Manifest.load(manifestFile);
+    		assertEquals(2, FileUtil.manifest.size());
+    		FileUtil.manifest.save(false);
+    		assertFalse(Files.exists(dir.resolve("run.manifest.journal")));
+
+    		FileUtil.manifest = Manifest.load(manifestFile);
+    		RunMetrics.reset();
+    		Files.setLastModifiedTime(b, FileTime.fromMillis(1000000000000L)); // touched but not changed
+    		Files.write(a, "gamma gamma".getBytes()); // changed, same size
+    		FileUtil.searchDirsAndDestroyDups(tree);
+    		assertEquals(1, RunMetrics.skippedCount());
+    		assertEquals("gamma", new String(Files.readAllBytes(a)));
+    	}
+    	finally
+    	{
+    		FileUtil.manifest = null;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testManifestTornJournal() throws IOException
+    {
+    	Path dir = Files.createTempDirectory("elimdups");
+    	Path manifestFile = dir.resolve("run.manifest");
+    	Path journal = dir.resolve("run.manifest.journal");
+    	try
+    	{
+    		Path a = Files.write(dir.resolve("a.txt"), "alpha".getBytes());
+    		Path b = Files.write(dir.resolve("b.txt"), "beta".getBytes());
+    		Manifest.load(manifestFile).recordClean(a);
+    		// killed part way through writing a record
+    		Files.write(journal, new byte[] { 1, 2, 3, 4, 5 }, StandardOpenOption.APPEND);
+    		Manifest manifest = Manifest.load(manifestFile);
+    		assertEquals(1, manifest.size());
+    		manifest.recordClean(b);
+    		// killed again, the record after the tear is read back as it was written
+    		manifest = Manifest.load(manifestFile);
+    		assertEquals(2, manifest.size());
+    		assertTrue(manifest.isClean(a, Files.readAttributes(a, BasicFileAttributes.class)));
+    		assertTrue(manifest.isClean(b, Files.readAttributes(b, BasicFileAttributes.class)));
+    	}
+    	finally
+    	{
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testManifestHashesWhatWasProcessed() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	long streaming = FileUtil.streamingThreshold;
+    	long mapping = FileUtil.mappingThreshold;
+    	Charset charset = FileUtil.charset;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	StringBuilder dirtyText = new StringBuilder();
+    	StringBuilder cleanText = new StringBuilder();
+    	for (int k = 0; k < 20; k++)
+    	{
+    		dirtyText.append("Line ").append(k).append(" über über alles.\n");
+    		cleanText.append("Line ").append(k).append(" is clean.\n");
+    	}
+    	try
+    	{
+    		/*
+    		 * The hash recorded for a file, taken from the bytes that went by, is that of the file as it was left: it is found clean
+    		 * after being touched. Read at once, streamed, mapped, in place (at once and streamed), in another charset (at once,
+    		 * streamed, mapped and in place), with the regex engine, compressed (in UTF-8 and another charset) and audited.
+    		 */
+    		for (int k = 0; k < 13; k++)
+    		{
+    			FileUtil.streamingThreshold = k == 1 || k == 4 || k == 6 ? 10 : streaming;
+    			FileUtil.mappingThreshold = k == 2 || k == 7 ? 10 : mapping;
+    			FileUtil.inPlace = k == 3 || k == 4 || k == 8;
+    			FileUtil.charset = k >= 5 && k <= 8 || k == 11 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+    			FileUtil.useRegexEngine = k == 9;
+    			FileUtil.gzip = k == 10 || k == 11;
+    			FileUtil.audit = k == 12;
+    			Manifest manifest = FileUtil.manifest = Manifest.load(dir.resolve(k + ".manifest"));
+    			List<Path> files = new ArrayList<Path>();
+    			if (FileUtil.gzip)
+    			{
+    				files.add(gzip(dir.resolve("dirty" + k + ".txt.gz"), dirtyText.toString()));
+    				files.add(gzip(dir.resolve("clean" + k + ".txt.gz"), cleanText.toString()));
+    			}
+    			else
+    			{
+    				files.add(Files.write(dir.resolve("dirty" + k + ".txt"), dirtyText.toString().getBytes(FileUtil.charset)));
+    				files.add(Files.write(dir.resolve("clean" + k + ".txt"), cleanText.toString().getBytes(FileUtil.charset)));
+    			}
+    			assertTrue("case " + k, FileUtil.elimDups(files.get(0)));
+    			assertFalse("case " + k, FileUtil.elimDups(files.get(1)));
+    			// (an audit leaves a file with duplicates out)
+    			for (Path file : FileUtil.audit ? files.subList(1, 2) : files)
+    			{
+    				Files.setLastModifiedTime(file, FileTime.fromMillis(1000000000000L));
+    				BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    				assertTrue("case " + k + " " + file, manifest.isClean(file, attrs));
+    			}
+    		}
+    	}
+    	finally
+    	{
+    		FileUtil.manifest = null;
+    		FileUtil.streamingThreshold = streaming;
+    		FileUtil.mappingThreshold = mapping;
+    		FileUtil.inPlace = false;
+    		FileUtil.charset = charset;
+    		FileUtil.useRegexEngine = false;
+    		FileUtil.gzip = false;
+    		FileUtil.audit = false;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testRunMetricsReport() throws IOException
+    {
+    	InfoUtil.useGraphics = false;
+    	int limit = RunMetrics.reportLimit;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		RunMetrics.reportLimit = 2;
+    		RunMetrics.reset();
+    		RunMetrics.openReport(dir.resolve("report.jsonl"));
+    		for (int k = 0; k < 5; k++)
+    		{
+    			FileUtil.elimDups(Files.write(dir.resolve("f" + k + ".txt"), (k % 2 == 0 ? "Dup dup dup." : "Clean.").getBytes()));
+    		}
+    		RunMetrics.finish(null);
+    		assertEquals(5, RunMetrics.processedFiles.count());
+    		assertEquals("only the first paths are kept", 2, RunMetrics.processedFiles.paths().size());
+    		assertEquals(3, RunMetrics.changedCount());
+    		assertEquals(6, RunMetrics.duplicatesRemoved());
+    		assertEquals(3 * 12 + 2 * 6, RunMetrics.bytesIn());
+    		assertEquals(3 * 4 + 2 * 6, RunMetrics.bytesOut());
+    		List<String> lines = Files.readAllLines(dir.resolve("report.jsonl"));
+    		assertEquals(6, lines.size());
+    		assertTrue(lines.get(0), lines.get(0).contains("\"status\":\"changed\",\"bytes_in\":12,\"bytes_out\":4,\"duplicates\":2"));
+    		assertTrue(lines.get(5), lines.get(5).startsWith("{\"summary\":true,\"files_changed\":3,"));
+
+    		RunMetrics.writePrometheus(dir.resolve("elimdups.prom"));
+    		String prom = new String(Files.readAllBytes(dir.resolve("elimdups.prom")));
+    		assertTrue(prom, prom.contains("elimdups_files_total{status=\"clean\"} 2\n"));
+    		assertTrue(prom, prom.contains("elimdups_file_duration_seconds_bucket{le=\"+Inf\"} 5\n"));
+    	}
+    	finally
+    	{
+    		RunMetrics.reportLimit = limit;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testBatchCommandLine() throws IOException
+    {
+    	Path dir = Files.createTempDirectory("elimdups");
+    	Set<String> extensions = FileUtil.extensions;
+    	int threads = FileUtil.threads;
+    	try
+    	{
+    		Path a = Files.write(dir.resolve("a.txt"), "a a".getBytes());
+    		Path b = Files.write(dir.resolve("b.md"), "b b".getBytes());
+    		Path c = Files.write(Files.createDirectory(dir.resolve("skip")).resolve("c.txt"), "c c".getBytes());
+    		Path d = Files.write(dir.resolve("d.log"), "d d".getBytes());
+    		assertEquals(RunOptions.EXIT_OK, ElimDups.run(new String[] { "-b", "-q", "-e", "txt,md", "-x", "skip", "-t", "2", dir.toString() }));
+    		assertEquals("a", new String(Files.readAllBytes(a)));
+    		assertEquals("b", new String(Files.readAllBytes(b)));
+    		assertEquals("c c", new String(Files.readAllBytes(c)));
+    		assertEquals("d d", new String(Files.readAllBytes(d)));
+    		assertEquals(RunOptions.EXIT_USAGE, ElimDups.run(new String[] { "--bogus", dir.toString() }));
+    		assertEquals(RunOptions.EXIT_USAGE, ElimDups.run(new String[] { "-b", dir.resolve("missing").toString() }));
+    		assertEquals(RunOptions.EXIT_USAGE, ElimDups.run(new String[] { "-b", d.toString() }));
+    	}
+    	finally
+    	{
+    		FileUtil.extensions = extensions;
+    		FileUtil.includeGlobs = Collections.emptyList();
+    		FileUtil.excludeGlobs = Collections.emptyList();
+    		FileUtil.threads = threads;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testProcesses() throws IOException
+    {
+    	Path dir = Files.createTempDirectory("elimdups");
+    	Set<String> extensions = FileUtil.extensions;
+    	int threads = FileUtil.threads;
+    	try
+    	{
+    		List<Path> files = new ArrayList<Path>();
+    		for (int k = 0; k < 6; k++)
+    		{
+    			Path sub = Files.createDirectories(dir.resolve("d" + k).resolve("e"));
+    			files.add(Files.write(dir.resolve("d" + k).resolve("a.txt"), ("Shard " + k + " " + k + ".").getBytes()));
+    			files.add(Files.write(sub.resolve("b.txt"), ("Deeper deeper " + k + ".").getBytes()));
+    		}
+    		Path linked = Files.write(dir.resolve("linked.txt"), "Linked the the file.".getBytes());
+    		Path link = Files.createLink(dir.resolve("d5").resolve("link.txt"), linked);
+    		Path zipped = gzip(dir.resolve("d3").resolve("c.txt.gz"), "Zipped zipped in a worker.");
+    		Path report = dir.resolve("report.json");
+    		assertEquals(RunOptions.EXIT_OK, ElimDups.run(new String[] { "-b", "-q", "-z", "-p", "2", "-t", "2", "--report", report.toString(), dir.toString() }));
+    		for (int k = 0; k < 6; k++)
+    		{
+    			assertEquals("Shard " + k + ".", new String(Files.readAllBytes(files.get(2 * k))));
+    			assertEquals("Deeper " + k + ".", new String(Files.readAllBytes(files.get(2 * k + 1))));
+    		}
+    		assertEquals("Linked the file.", new String(Files.readAllBytes(link)));
+    		assertTrue(Files.isSameFile(linked, link));
+    		// the workers get every option of the command line
+    		assertEquals("Zipped in a worker.", gunzip(zipped));
+    		// the workers' figures and report lines end up here, with the linked file processed once and its other link skipped
+    		assertEquals(12 + 1 + 1, RunMetrics.changedCount());
+    		assertEquals(1, RunMetrics.skippedCount());
+    		assertEquals(15 + 1, Files.readAllLines(report).size());
+    		assertEquals(RunOptions.EXIT_USAGE, ElimDups.run(new String[] { "-b", "-p", "2", "--watch", dir.toString() }));
+    	}
+    	finally
+    	{
+    		FileUtil.extensions = extensions;
+    		FileUtil.includeGlobs = Collections.emptyList();
+    		FileUtil.excludeGlobs = Collections.emptyList();
+    		FileUtil.threads = threads;
+    		FileUtil.gzip = false;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    public void testWatchDaemon() throws Exception
+    {
+    	InfoUtil.useGraphics = false;
+    	Path dir = Files.createTempDirectory("elimdups");
+    	try
+    	{
+    		Path existing = Files.write(dir.resolve("existing.txt"), "old old".getBytes());
+    		WatchDaemon daemon = new WatchDaemon(Collections.singletonList(dir), 10, 2);
+    		Thread thread = start(daemon);
+    		try
+    		{
+    			assertEquals("old", awaitContent(existing, "old"));
+    			Path added = Files.write(dir.resolve("added.txt"), "new new".getBytes());
+    			assertEquals("new", awaitContent(added, "new"));
+    			Path nested = Files.write(Files.createDirectories(dir.resolve("a").resolve("b")).resolve("nested.txt"), "deep deep".getBytes());
+    			assertEquals("deep", awaitContent(nested, "deep"));
+    			Path other = Files.write(dir.resolve("other.dat"), "dat dat".getBytes());
+    			Thread.sleep(100);
+    			assertEquals("dat dat", new String(Files.readAllBytes(other)));
+    		}
+    		finally
+    		{
+    			daemon.stop();
+    			thread.join(10000);
+    		}
+    		assertFalse(thread.isAlive());
+    		assertNull(FileUtil.replacing);
+
+    		// A file the daemon wrote over in place is not processed again because of the events its own write caused
+    		RunMetrics.reset();
+    		FileUtil.inPlace = true;
+    		Path inPlaceDir = Files.createDirectory(dir.resolve("in-place"));
+    		Path rewritten = Files.write(inPlaceDir.resolve("rewritten.txt"), "same same".getBytes());
+    		daemon = new WatchDaemon(Collections.singletonList(inPlaceDir), 10, 2);
+    		thread = start(daemon);
+    		try
+    		{
+    			assertEquals("same", awaitContent(rewritten, "same"));
+    			Thread.sleep(200);
+    		}
+    		finally
+    		{
+    			daemon.stop();
+    			thread.join(10000);
+    		}
+    		assertFalse(thread.isAlive());
+    		assertEquals(1, RunMetrics.changedCount());
+    		assertEquals(0, RunMetrics.cleanCount());
+    	}
+    	finally
+    	{
+    		FileUtil.inPlace = false;
+    		RunMetrics.reset();
+    		deleteTree(dir);
+    	}
+    }
+
+    // Helper method that runs a watch daemon on a thread of its own
+    private static Thread start(WatchDaemon daemon)
+    {
+    	Thread thread = new Thread(() -> {
+    		try
+    		{
+    			daemon.run();
+    		}
+    		catch (IOException e)
+    		{
+    			throw new UncheckedIOException(e);
+    		}
+    	});
+    	thread.start();
+    	return thread;
+    }
+
+    // Helper method that waits (up to 10 seconds) for a file to get the expected content and returns what it has by then
+    private static String awaitContent(Path file, String expected) throws Exception
+    {
+    	String content = null;
+    	for (long end = System.nanoTime() + 10000000000L; System.nanoTime() < end; Thread.sleep(5))
+    	{
+    		content = new String(Files.readAllBytes(file));
+    		if (content.equals(expected))
+    		{
+    			break;
+    		}
+    	}
+    	return content;
+    }
+
+    // Helper method that removes a temporary directory tree
+    static void deleteTree(Path dir) throws IOException
+    {
+    	try (Stream<Path> paths = Files.walk(dir))
+    	{
+    		for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+    		{
+    			Files.delete(p);
+    		}
+    	}
+    }
 }